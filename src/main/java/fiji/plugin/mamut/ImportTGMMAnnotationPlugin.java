@@ -39,7 +39,9 @@ import java.util.List;
 import bdv.spimdata.SequenceDescriptionMinimal;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.XmlIoSpimDataMinimal;
+import fiji.plugin.mamut.io.MamutXmlReader;
 import fiji.plugin.mamut.io.MamutXmlWriter;
+import fiji.plugin.mamut.io.TGMMFolderWatcher;
 import fiji.plugin.mamut.io.TGMMImporter2;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
@@ -56,9 +58,10 @@ import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.TimePoint;
 import net.imglib2.FinalRealInterval;
 import net.imglib2.RealInterval;
+import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.realtransform.AffineTransform3D;
 
-public class ImportTGMMAnnotationPlugin implements PlugIn
+public class ImportTGMMAnnotationPlugin implements PlugIn, MultiThreaded
 {
 
 	private static final Font BIG_FONT = new Font( "Arial", Font.BOLD, 16 );
@@ -81,7 +84,8 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 	private static final String HELP_MESSAGE = "<html>"
 			+ "This plugin creates a MaMuT file from a BigDataViewer "
 			+ "XML/HDF5 image and a folder containing the file generated "
-			+ "by the TGMM algorithm. "
+			+ "by the TGMM algorithm. The TGMM files can be gzipped, and "
+			+ "the folder can be replaced by a .tar, .tar.gz or .tgz archive of it. "
 			+ "<p>"
 			+ "See the paper from Fernando Amat and colleagues to generate "
 			+ "these annotations: <br>"
@@ -115,7 +119,37 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 
 	private static boolean defaultDoCrop = false;
 	private static boolean defaultBreakDiv = false;
-	
+
+	private static boolean defaultAppend = false;
+
+	private static boolean defaultWatch = false;
+
+	/** How often to poll the TGMM folder for new frames, in seconds. */
+	private static final long WATCH_PERIOD = 30;
+
+	/** How long to wait for a new TGMM frame before giving up, in seconds. */
+	private static final long WATCH_IDLE_TIMEOUT = 3600;
+
+	/**
+	 * Minimal time between two saves of the MaMuT file while watching, in
+	 * seconds.
+	 */
+	private static final long WATCH_SAVE_PERIOD = 600;
+
+	private static int defaultNumThreads = Runtime.getRuntime().availableProcessors();
+
+	private static int defaultFeatureChoice = 0;
+
+	private static final String[] featureChoiceNames = new String[] { "Compute on import (default)", "Defer until the file is opened in MaMuT" };
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * If <code>false</code>, features are not computed on import. They will be
+	 * computed when the MaMuT file is opened.
+	 */
+	private boolean computeFeatures = true;
+
 	private static String defaultOutputPath;
 
 	private static String defaultTGMMPath;
@@ -153,8 +187,8 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 			final File parent = folder.getParentFile();
 			defaultTGMMPath = parent == null ? null : parent.getParentFile().getAbsolutePath();
 		}
-		dialog.addMessage( "Select the TGMM annotation folder." );
-		dialog.addDirectoryField( "TGMM folder", defaultTGMMPath, 30 );
+		dialog.addMessage( "Select the TGMM annotation folder, or a .tar/.tar.gz archive of it." );
+		dialog.addDirectoryOrFileField( "TGMM folder", defaultTGMMPath, 30 );
 
 		if ( null == defaultOutputPath )
 		{
@@ -171,8 +205,14 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 		//dialog.addCheckbox( "Break cell divisions (create new tracks)", defaultBreakDiv );
 		//final Checkbox break_checkbox = ( Checkbox ) dialog.getCheckboxes().lastElement();
 		dialog.addChoice( "Break splits/divisions (create new tracks):", breakDivNames, breakDivNames[ 0 ] );
-		
-		
+
+		dialog.addCheckbox( "Append new frames to existing MaMuT file", defaultAppend );
+		dialog.addCheckbox( "Keep watching TGMM folder for new frames", defaultWatch );
+
+		dialog.addChoice( "Feature computation:", featureChoiceNames, featureChoiceNames[ defaultFeatureChoice ] );
+		dialog.addNumericField( "Number of threads", defaultNumThreads, 0 );
+		final int nNonCropFields = dialog.getNumericFields().size();
+
 		dialog.addCheckbox( "Crop on import", defaultDoCrop );
 		final Checkbox checkbox = ( Checkbox ) dialog.getCheckboxes().lastElement();
 
@@ -184,20 +224,21 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 		dialog.addNumericField( "Z to", defaultZTo, 1 );
 		dialog.addNumericField( "T from", defaultTFrom, 0 );
 		dialog.addNumericField( "T to", defaultTTo, 0 );
+		final List< ? > cropFields = new ArrayList<>( dialog.getNumericFields().subList( nNonCropFields, dialog.getNumericFields().size() ) );
 
 		checkbox.addItemListener( new ItemListener()
 		{
 			@Override
 			public void itemStateChanged( final ItemEvent arg0 )
 			{
-				for ( final Object o : dialog.getNumericFields() )
+				for ( final Object o : cropFields )
 				{
 					final TextField tf = ( TextField ) o;
 					tf.setEnabled( checkbox.getState() );
 				}
 			}
 		} );
-		for ( final Object o : dialog.getNumericFields() )
+		for ( final Object o : cropFields )
 		{
 			final TextField tf = ( TextField ) o;
 			tf.setEnabled( checkbox.getState() );
@@ -217,6 +258,10 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 		final String tgmmPath = dialog.getNextString();
 		final String outputPath = dialog.getNextString();
 		final int doBreakDiv = dialog.getNextChoiceIndex();
+		final boolean append = dialog.getNextBoolean();
+		final boolean watch = dialog.getNextBoolean();
+		final int featureChoice = dialog.getNextChoiceIndex();
+		final int nThreads = Math.max( 1, ( int ) dialog.getNextNumber() );
 		final boolean doCrop = dialog.getNextBoolean();
 		final RealInterval interval;
 		int tFrom = 0;
@@ -256,6 +301,12 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 		defaultTGMMPath = tgmmPath;
 		defaultOutputPath = outputPath;
 		defaultDoCrop = doCrop;
+		defaultAppend = append;
+		defaultWatch = watch;
+		defaultFeatureChoice = featureChoice;
+		defaultNumThreads = nThreads;
+		setNumThreads( nThreads );
+		setComputeFeatures( featureChoice == 0 );
 
 		/*
 		 * Ask for a view setup
@@ -306,10 +357,33 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 
 		final int angleIndex = dialogAngles.getNextChoiceIndex();
 		final int setupID = spimData.getSequenceDescription().getViewSetupsOrdered().get( angleIndex ).getId();
-		exec( xmlHDF5Path, setupID, tgmmPath, outputPath, interval, tFrom, tTo, doBreakDiv );
+		exec( xmlHDF5Path, setupID, tgmmPath, outputPath, interval, tFrom, tTo, doBreakDiv, append, watch );
 	}
 
 	public void exec( final String xmlHDF5Path, final int setupID, final String tgmmPath, final String outputPath, final RealInterval interval, final int tFrom, final int tTo, final int doBreakDiv )
+	{
+		exec( xmlHDF5Path, setupID, tgmmPath, outputPath, interval, tFrom, tTo, doBreakDiv, false, false );
+	}
+
+	/**
+	 * Imports TGMM annotations and saves them to a MaMuT file.
+	 *
+	 * @param append
+	 *            if <code>true</code> and the MaMuT file exists, only the TGMM
+	 *            frames after the last frame of this file are imported, and
+	 *            appended to it.
+	 * @param watch
+	 *            if <code>true</code>, keeps watching the TGMM folder after
+	 *            import, and appends the new frames TGMM writes to the MaMuT
+	 *            file as they appear. The MaMuT file is saved at most every
+	 *            10 minutes while watching, without features, and once more
+	 *            with features when watching stops.
+	 * @return the watcher of the TGMM folder, or <code>null</code> if the
+	 *         folder is not watched. Its thread does not keep the JVM alive:
+	 *         headless callers must wait for it with
+	 *         {@link TGMMFolderWatcher#awaitTermination()}.
+	 */
+	public TGMMFolderWatcher exec( final String xmlHDF5Path, final int setupID, final String tgmmPath, final String outputPath, final RealInterval interval, final int tFrom, final int tTo, final int doBreakDiv, final boolean append, final boolean watch )
 	{
 		SpimDataMinimal spimData;
 		try
@@ -319,19 +393,122 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 		catch ( final SpimDataException e )
 		{
 			logger.error( "Problem reading the transforms in image data file:\n" + e.getMessage() + "\n" );
-			return;
+			return null;
+		}
+		final TGMMImporter2 importer = createImporter( new File( tgmmPath ), spimData, setupID, interval, tFrom, tTo, doBreakDiv );
+		final File mamutFile = new File( outputPath );
+		final Model model;
+		if ( append && mamutFile.exists() )
+		{
+			logger.log( "Appending to " + mamutFile + '\n' );
+			model = new MamutXmlReader( mamutFile ).getModel();
+			if ( !importer.resume( model ) || !importer.processNewFrames() )
+			{
+				logger.error( importer.getErrorMessage() );
+				return null;
+			}
+		}
+		else
+		{
+			model = createModel( importer );
 		}
-		final Model model = createModel( new File( tgmmPath ), spimData, setupID, interval, tFrom, tTo, doBreakDiv );
 		model.setLogger( logger );
 		final Settings settings = createSettings( new File( xmlHDF5Path ) );
 
+		computeFeatures( model, settings );
+		save( outputPath, model, settings );
+
+		if ( !watch || importer.isComplete() || !new File( tgmmPath ).isDirectory() )
+			return null;
+
+		/*
+		 * Recomputing all features and rewriting the whole file at each poll
+		 * would be quadratic over a TGMM run. Save periodically without
+		 * features, and compute them once when watching stops.
+		 */
+		final TGMMFolderWatcher watcher = new TGMMFolderWatcher( importer, new TGMMFolderWatcher.NewFramesListener()
+		{
+			private long lastSave = System.currentTimeMillis();
+
+			private boolean changed = false;
+
+			@Override
+			public void newFramesImported( final int lastFrame, final boolean complete )
+			{
+				changed = true;
+				if ( complete || System.currentTimeMillis() - lastSave < 1000 * WATCH_SAVE_PERIOD )
+					return;
+
+				logger.log( "Saving up to frame " + lastFrame + ". Features will be computed when watching stops.\n" );
+				save( outputPath, model, settings );
+				lastSave = System.currentTimeMillis();
+			}
+
+			@Override
+			public void watchStopped( final boolean complete )
+			{
+				if ( !changed )
+					return;
+
+				computeFeatures( model, settings );
+				save( outputPath, model, settings );
+			}
+		}, WATCH_PERIOD, WATCH_IDLE_TIMEOUT, logger );
+		watcher.start();
+		return watcher;
+	}
+
+	/**
+	 * Sets whether spot, edge and track features are computed on import. If
+	 * not, the import is much faster and features will be computed when the
+	 * MaMuT file is opened.
+	 *
+	 * @param computeFeatures
+	 *            whether to compute features on import.
+	 */
+	public void setComputeFeatures( final boolean computeFeatures )
+	{
+		this.computeFeatures = computeFeatures;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		setNumThreads( Runtime.getRuntime().availableProcessors() );
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	private void computeFeatures( final Model model, final Settings settings )
+	{
+		if ( !computeFeatures )
+		{
+			logger.log( "Feature computation deferred until the file is opened.\n" );
+			return;
+		}
+
+		/*
+		 * The TrackMate calculators process frames, edges and tracks in
+		 * parallel over the specified number of threads.
+		 */
+		final long start = System.currentTimeMillis();
 		final TrackMate trackmate = new TrackMate( model, settings );
-		trackmate.setNumThreads( 1 );
+		trackmate.setNumThreads( numThreads );
 		trackmate.computeSpotFeatures( true );
 		trackmate.computeEdgeFeatures( true );
 		trackmate.computeTrackFeatures( true );
-
-		save( outputPath, model, settings );
+		final long end = System.currentTimeMillis();
+		logger.log( String.format( "Features computed in %.1f s with %d threads.\n", ( end - start ) / 1000d, numThreads ) );
 	}
 
 	private void save( final String outputPath, final Model model, final Settings settings )
@@ -389,6 +566,11 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 	}
 
 	protected Model createModel( final File tgmmFolder, final SpimDataMinimal spimData, final int setupID, final RealInterval interval, final int tFrom, final int tTo, final int doBreakDiv )
+	{
+		return createModel( createImporter( tgmmFolder, spimData, setupID, interval, tFrom, tTo, doBreakDiv ) );
+	}
+
+	protected TGMMImporter2 createImporter( final File tgmmFolder, final SpimDataMinimal spimData, final int setupID, final RealInterval interval, final int tFrom, final int tTo, final int doBreakDiv )
 	{
 
 		final SequenceDescriptionMinimal seq = spimData.getSequenceDescription();
@@ -401,6 +583,13 @@ public class ImportTGMMAnnotationPlugin implements PlugIn
 		}
 
 		final TGMMImporter2 importer = new TGMMImporter2( tgmmFolder, transforms, timepoints, TGMMImporter2.DEFAULT_PATTERN, logger, interval, tFrom, tTo, doBreakDiv );
+		// Spot names are only needed when saving.
+		importer.setSpotNaming( TGMMImporter2.SpotNaming.DEFER );
+		return importer;
+	}
+
+	protected Model createModel( final TGMMImporter2 importer )
+	{
 		if ( !importer.checkInput() || !importer.process() )
 		{
 			logger.error( importer.getErrorMessage() );
@@ -112,7 +112,7 @@ public class LoadMamutAnnotationPlugin implements PlugIn
 		 * Launch MaMuT.
 		 */
 
-		final MaMuT mamut = new MaMuT( model, settings, ds );
+		final MaMuT mamut = new MaMuT( model, settings, ds, mamutFile );
 
 		/*
 		 * Update setup assignments.
@@ -126,6 +126,12 @@ public class LoadMamutAnnotationPlugin implements PlugIn
 
 		reader.readBookmarks( mamut.getBookmarks() );
 
+		/*
+		 * Feature computation settings.
+		 */
+
+		reader.readFeatureSettings( mamut );
+
 		// Views
 		reader.getViews(
 				mamut,
@@ -36,8 +36,12 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.AbstractAction;
 import javax.swing.ActionMap;
@@ -46,6 +50,7 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
 import org.scijava.listeners.Listeners;
@@ -64,8 +69,11 @@ import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import bdv.viewer.ViewerOptions;
 import bdv.viewer.ViewerState;
+import fiji.plugin.mamut.detection.MultiSeedSemiAutoTracker;
+import fiji.plugin.mamut.detection.MultiSeedSemiAutoTracker.Direction;
 import fiji.plugin.mamut.detection.SourceSemiAutoTracker;
 import fiji.plugin.mamut.feature.MamutModelFeatureUpdater;
+import fiji.plugin.mamut.feature.MamutSpotFeatureCalculator;
 import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
 import fiji.plugin.mamut.gui.AnnotationPanel;
 import fiji.plugin.mamut.gui.MamutControlPanel;
@@ -74,6 +82,7 @@ import fiji.plugin.mamut.gui.MamutGUIModel;
 import fiji.plugin.mamut.gui.MamutKeyboardHandler;
 import fiji.plugin.mamut.io.MamutXmlWriter;
 import fiji.plugin.mamut.util.SourceSpotImageUpdater;
+import fiji.plugin.mamut.util.ThumbnailStore;
 import fiji.plugin.mamut.viewer.MamutViewer;
 import fiji.plugin.mamut.viewer.MamutViewerPanel;
 import fiji.plugin.trackmate.Logger;
@@ -86,6 +95,7 @@ import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.action.ExportAllSpotsStatsAction;
 import fiji.plugin.trackmate.action.ExportStatsTablesAction;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings.TrackMateObject;
 import fiji.plugin.trackmate.io.IOUtils;
 import fiji.plugin.trackmate.visualization.TrackMateModelView;
 import fiji.plugin.mamut.threedviewer.SpotDisplayer3D;
@@ -160,6 +170,18 @@ public class MaMuT implements ModelChangeListener
 
 	private final SourceSpotImageUpdater< ? > thumbnailUpdater;
 
+	private final MamutModelFeatureUpdater featureUpdater;
+
+	/**
+	 * Bounded thread pool shared by the semi-automated tracking of several
+	 * seeds.
+	 */
+	private final ExecutorService trackingExecutor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), r -> {
+		final Thread thread = new Thread( r, "MaMuT semi-automated tracking worker" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
 	private Logger logger = Logger.DEFAULT_LOGGER;
 
 	/**
@@ -181,10 +203,24 @@ public class MaMuT implements ModelChangeListener
 
 	public MaMuT( final Model model, final SourceSettings settings, final DisplaySettings ds )
 	{
+		this( model, settings, ds, getDefaultMamutFile( settings ) );
+	}
+
+	/**
+	 * Creates a MaMuT session for the specified MaMuT file. It is proposed
+	 * when saving, and TrackScheme thumbnails are persisted next to it.
+	 */
+	public MaMuT( final Model model, final SourceSettings settings, final DisplaySettings ds, final File file )
+	{
+		mamutFile = file;
 		this.model = model;
 		this.settings = settings;
 		this.ds = ds;
 		ds.listeners().add( () -> requestRepaintAllViewers() );
+		ds.listeners().add( () -> {
+			if ( ds.getSpotColorByType() == TrackMateObject.SPOTS )
+				updateStaleFeatures();
+		} );
 		this.guimodel = new MamutGUIModel();
 
 		this.trackmate = new TrackMate( model, settings );
@@ -193,12 +229,6 @@ public class MaMuT implements ModelChangeListener
 		trackmate.computeTrackFeatures( true );
 
 
-		final File bdvFile = new File( settings.imageFolder, settings.imageFileName );
-		final String pf = bdvFile.getParent();
-		String lf = bdvFile.getName();
-		lf = lf.split( "\\." )[ 0 ] + "-mamut.xml";
-		mamutFile = new File( pf, lf );
-
 		/*
 		 * Prepare model & settings
 		 */
@@ -207,7 +237,7 @@ public class MaMuT implements ModelChangeListener
 		/*
 		 * Auto-update features & declare them
 		 */
-		new MamutModelFeatureUpdater( model, settings );
+		this.featureUpdater = new MamutModelFeatureUpdater( model, settings );
 
 		/*
 		 * Selection model
@@ -242,12 +272,16 @@ public class MaMuT implements ModelChangeListener
 		@SuppressWarnings( "rawtypes" )
 		final SourceSpotImageUpdater tmpUpdater = new SourceSpotImageUpdater( settings );
 		thumbnailUpdater = tmpUpdater;
+		model.addModelChangeListener( thumbnailUpdater );
+		thumbnailUpdater.setModel( model );
+		setPersistentThumbnails( true );
 
 		/*
 		 * Annotation panel.
 		 */
 		final AnnotationPanel annotationPanel = gui.getAnnotationPanel();
 		logger = annotationPanel.getLogger();
+		featureUpdater.addJobListener( annotationPanel.getJobListener() );
 
 		/*
 		 * Help
@@ -260,6 +294,27 @@ public class MaMuT implements ModelChangeListener
 		brightnessDialog = new BrightnessDialog( gui, setupAssignments );
 
 		gui.setSize( 340, 580 );
+		gui.addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosing( final WindowEvent e )
+			{
+				featureUpdater.quit();
+				trackingExecutor.shutdownNow();
+				final ThumbnailStore store = thumbnailUpdater.getStore();
+				if ( null != store )
+				{
+					try
+					{
+						store.close();
+					}
+					catch ( final IOException ioe )
+					{
+						Logger.IJ_LOGGER.error( "Could not write thumbnail file " + store.getFile() + ":\n" + ioe.getMessage() + '\n' );
+					}
+				}
+			}
+		} );
 		gui.setVisible( true );
 	}
 
@@ -300,6 +355,14 @@ public class MaMuT implements ModelChangeListener
 	@SuppressWarnings( { "rawtypes", "unchecked" } )
 	public void semiAutoDetectSpot()
 	{
+		if ( guimodel.semiAutoTrackingDirection != Direction.FORWARD
+				|| guimodel.multiViewSemiAutoTracking
+				|| ( guimodel.concurrentSemiAutoTracking && selectionModel.getSpotSelection().size() > 1 ) )
+		{
+			semiAutoTrackAllSeeds();
+			return;
+		}
+
 		final SourceSemiAutoTracker autotracker = new SourceSemiAutoTracker( model, selectionModel, settings.getSources(), logger );
 		autotracker.setNumThreads( 4 );
 		autotracker.setParameters( guimodel.qualityThreshold, guimodel.distanceTolerance, guimodel.maxNFrames );
@@ -318,6 +381,30 @@ public class MaMuT implements ModelChangeListener
 		}.start();
 	}
 
+	/**
+	 * Performs semi-automated tracking of all the selected spots at once, on
+	 * the shared tracking thread pool, in the direction set in the GUI model.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private void semiAutoTrackAllSeeds()
+	{
+		final MultiSeedSemiAutoTracker autotracker = new MultiSeedSemiAutoTracker( model, selectionModel, settings.getSources(), trackingExecutor, logger );
+		autotracker.setParameters( guimodel.qualityThreshold, guimodel.distanceTolerance, guimodel.maxNFrames );
+		autotracker.setDirection( guimodel.semiAutoTrackingDirection );
+		autotracker.setMultiView( guimodel.multiViewSemiAutoTracking );
+
+		new Thread( "MaMuT multi-seed semi-automated tracking thread" )
+		{
+			@Override
+			public void run()
+			{
+				final boolean ok = autotracker.checkInput() && autotracker.process();
+				if ( !ok )
+					logger.error( autotracker.getErrorMessage() );
+			}
+		}.start();
+	}
+
 	/**
 	 * Adds a new spot at the mouse current location.
 	 *
@@ -595,14 +682,91 @@ public class MaMuT implements ModelChangeListener
 		}
 	}
 
+	/**
+	 * Sets the minimal number of pixels the diameter of a spot must span for
+	 * its features to be computed on a down-sampled resolution level. The
+	 * value is stored in the GUI model, and saved with the MaMuT file.
+	 *
+	 * @see MamutSpotFeatureCalculator#setMinPixelsAcrossDiameter(double)
+	 */
+	public void setMinPixelsAcrossDiameter( final double minPixelsAcrossDiameter )
+	{
+		guimodel.minPixelsAcrossDiameter = minPixelsAcrossDiameter;
+		featureUpdater.setMinPixelsAcrossDiameter( minPixelsAcrossDiameter );
+		gui.getAnnotationPanel().refreshFeatureSettings( guimodel );
+	}
+
+	/**
+	 * Sets whether expensive spot features, such as intensity features, are
+	 * only computed when they are displayed or saved, instead of after every
+	 * edit. The value is stored in the GUI model, and saved with the MaMuT
+	 * file.
+	 */
+	public void setLazyFeatures( final boolean lazy )
+	{
+		guimodel.lazySpotFeatures = lazy;
+		featureUpdater.setLazyAnalyzers( lazy
+				? MamutSpotFeatureCalculator.EXPENSIVE_ANALYZERS
+				: Collections.emptyList() );
+		gui.getAnnotationPanel().refreshFeatureSettings( guimodel );
+		if ( lazy && ds.getSpotColorByType() == TrackMateObject.SPOTS )
+			updateStaleFeatures();
+	}
+
+	/**
+	 * Computes lazy spot features that are out of date, in the feature
+	 * calculator thread, then repaints the views. Requests made while a
+	 * computation is pending are merged.
+	 */
+	private void updateStaleFeatures()
+	{
+		featureUpdater.updateStaleFeatures( () -> requestRepaintAllViewers() );
+	}
+
+	/**
+	 * Runs the specified action on the EDT once the lazy spot features that
+	 * are out of date were computed in the feature calculator thread.
+	 * Progress is displayed in the annotation panel meanwhile.
+	 */
+	private void afterStaleFeatures( final Runnable action )
+	{
+		featureUpdater.updateStaleFeatures( () -> SwingUtilities.invokeLater( action ) );
+	}
+
+	/**
+	 * Recomputes all the spot, edge and track features of the model, in
+	 * another thread. Progress is displayed in the annotation panel, where the
+	 * computation can be cancelled.
+	 */
+	public void recomputeFeatures()
+	{
+		new Thread( "MaMuT feature computation thread" )
+		{
+			@Override
+			public void run()
+			{
+				featureUpdater.computeAllFeatures();
+				requestRepaintAllViewers();
+			}
+		}.start();
+	}
+
+	/**
+	 * Cancels the feature computations currently running.
+	 */
+	public void cancelFeatureComputation()
+	{
+		featureUpdater.cancel();
+	}
+
 	public void newTrackTables()
 	{
-		new ExportStatsTablesAction().execute( trackmate, selectionModel, ds, gui );
+		afterStaleFeatures( () -> new ExportStatsTablesAction().execute( trackmate, selectionModel, ds, gui ) );
 	}
 
 	public void newSpotTable()
 	{
-		new ExportAllSpotsStatsAction().execute( trackmate, selectionModel, ds, gui );
+		afterStaleFeatures( () -> new ExportAllSpotsStatsAction().execute( trackmate, selectionModel, ds, gui ) );
 	}
 
 	public TrackScheme newTrackScheme()
@@ -695,6 +859,19 @@ public class MaMuT implements ModelChangeListener
 	 * PRIVATE METHODS
 	 */
 
+	/**
+	 * Returns the MaMuT file proposed for a new annotation of the specified
+	 * image: <code>&lt;image&gt;-mamut.xml</code> in the image folder.
+	 */
+	private static File getDefaultMamutFile( final SourceSettings settings )
+	{
+		final File bdvFile = new File( settings.imageFolder, settings.imageFileName );
+		final String pf = bdvFile.getParent();
+		String lf = bdvFile.getName();
+		lf = lf.split( "\\." )[ 0 ] + "-mamut.xml";
+		return new File( pf, lf );
+	}
+
 	private JMenuBar createMenuBar( final MamutViewer viewer )
 	{
 		final ActionMap actionMap = viewer.getKeybindings().getConcatenatedActionMap();
@@ -756,33 +933,49 @@ public class MaMuT implements ModelChangeListener
 		}
 		mamutFile = proposed;
 
+		// Lazy features must be up to date before they are written.
+		afterStaleFeatures( () -> write( proposed ) );
+	}
+
+	private void write( final File file )
+	{
+		final Logger lLogger = Logger.IJ_LOGGER;
 		MamutXmlWriter writer = null;
 		try
 		{
-			lLogger.log( "Saving to " + mamutFile + '\n' );
-			writer = new MamutXmlWriter( mamutFile, lLogger );
+			lLogger.log( "Saving to " + file + '\n' );
+			writer = new MamutXmlWriter( file, lLogger );
 			writer.appendModel( model );
 			writer.appendSettings( settings );
 			writer.appendMamutState( guimodel, setupAssignments, bookmarks );
 			writer.appendDisplaySettings( ds );
 			writer.writeToFile();
+			final ThumbnailStore store = thumbnailUpdater.getStore();
+			if ( null != store )
+			{
+				final Set< Integer > spotIDs = new HashSet<>();
+				for ( final Spot spot : model.getSpots().iterable( false ) )
+					spotIDs.add( Integer.valueOf( spot.ID() ) );
+				store.retain( spotIDs );
+				store.relocate( file );
+			}
 			lLogger.log( "Done.\n" );
 		}
 		catch ( final FileNotFoundException e )
 		{
-			lLogger.error( "Could not find file " + mamutFile + ";\n" + e.getMessage() );
+			lLogger.error( "Could not find file " + file + ";\n" + e.getMessage() );
 			somethingWrongHappenedWhileSaving( writer );
 			e.printStackTrace();
 		}
 		catch ( final IOException e )
 		{
-			lLogger.error( "Could not write to " + mamutFile + ";\n" + e.getMessage() );
+			lLogger.error( "Could not write to " + file + ";\n" + e.getMessage() );
 			somethingWrongHappenedWhileSaving( writer );
 			e.printStackTrace();
 		}
 		catch ( final Exception e )
 		{
-			lLogger.error( "Something wrong happened while saving to " + mamutFile + ";\n" + e.getMessage() );
+			lLogger.error( "Something wrong happened while saving to " + file + ";\n" + e.getMessage() );
 			somethingWrongHappenedWhileSaving( writer );
 			e.printStackTrace();
 		}
@@ -1041,6 +1234,47 @@ public class MaMuT implements ModelChangeListener
 		return selectionModel;
 	}
 
+	/**
+	 * Exposes the bounded thread pool shared by the semi-automated tracking
+	 * tasks of this MaMuT session.
+	 *
+	 * @return the tracking {@link ExecutorService}.
+	 */
+	public ExecutorService getTrackingExecutor()
+	{
+		return trackingExecutor;
+	}
+
+	/**
+	 * Sets whether TrackScheme thumbnails are kept in a sidecar file next to
+	 * the MaMuT file, so that they do not have to be regenerated from the
+	 * image data in the next session. On by default.
+	 *
+	 * @param persistent
+	 *            whether to persist thumbnails.
+	 * @see ThumbnailStore
+	 */
+	public void setPersistentThumbnails( final boolean persistent )
+	{
+		final ThumbnailStore store = thumbnailUpdater.getStore();
+		try
+		{
+			if ( persistent && null == store )
+			{
+				thumbnailUpdater.setStore( ThumbnailStore.open( mamutFile, Logger.IJ_LOGGER ) );
+			}
+			else if ( !persistent && null != store )
+			{
+				thumbnailUpdater.setStore( null );
+				store.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			Logger.IJ_LOGGER.error( "Could not access thumbnail file " + ThumbnailStore.getStoreFile( mamutFile ) + ":\n" + e.getMessage() + '\n' );
+		}
+	}
+
 	/**
 	 * Exposes the GUI frame that fosters user interface with this MaMuT
 	 * session.
@@ -0,0 +1,199 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.action;
+
+import java.awt.Frame;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import bdv.viewer.SourceAndConverter;
+import fiji.plugin.mamut.detection.MultiSeedSemiAutoTracker;
+import fiji.plugin.mamut.detection.MultiSeedSemiAutoTracker.Seed;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.action.AbstractTMAction;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import ij.text.TextWindow;
+
+public class MamutExtendTrackEndsAction extends AbstractTMAction
+{
+	public static final String NAME = "Extend all track ends";
+
+	public static final String KEY = "EXTEND_TRACK_ENDS";
+
+	public static final String INFO_TEXT = "<html> "
+			+ "Extends with semi-automatic tracking all the tracks that end "
+			+ "in a frame interval. "
+			+ "<p>"
+			+ "Every spot of a track that has no successor and lies in the "
+			+ "specified frame interval is used as a seed. All seeds are "
+			+ "tracked concurrently, with the quality threshold, distance "
+			+ "tolerance and max number of frames of the semi-automatic "
+			+ "tracking panel, and tracks are not extended past the last "
+			+ "frame of the interval. "
+			+ "<p>"
+			+ "A summary of the outcome of every track is shown at the end. "
+			+ "</html>";
+
+	private final List< SourceAndConverter< ? > > sources;
+
+	private final ExecutorService executor;
+
+	private final double qualityThreshold;
+
+	private final double distanceTolerance;
+
+	private final int nFrames;
+
+	private final int firstFrame;
+
+	private final int lastFrame;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Instantiates a new action that extends the tracks ending in a frame
+	 * interval.
+	 *
+	 * @param sources
+	 *            the image sources to detect spots in.
+	 * @param executor
+	 *            the executor to run detections on.
+	 * @param qualityThreshold
+	 *            the fraction of the seed quality found spots must have.
+	 * @param distanceTolerance
+	 *            the maximal distance between successive spots, in units of
+	 *            spot radius.
+	 * @param nFrames
+	 *            the max number of frames to extend each track by. 0 or
+	 *            negative for no limit.
+	 * @param firstFrame
+	 *            the first frame of the interval, inclusive.
+	 * @param lastFrame
+	 *            the last frame of the interval, inclusive.
+	 */
+	public MamutExtendTrackEndsAction(
+			final List< SourceAndConverter< ? > > sources,
+			final ExecutorService executor,
+			final double qualityThreshold,
+			final double distanceTolerance,
+			final int nFrames,
+			final int firstFrame,
+			final int lastFrame )
+	{
+		this.sources = sources;
+		this.executor = executor;
+		this.qualityThreshold = qualityThreshold;
+		this.distanceTolerance = distanceTolerance;
+		this.nFrames = nFrames;
+		this.firstFrame = firstFrame;
+		this.lastFrame = lastFrame;
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	@Override
+	public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+	{
+		final Model model = trackmate.getModel();
+		final List< Spot > ends = getTrackEnds( model, firstFrame, lastFrame );
+		logger.log( "Found " + ends.size() + " track ends between frames " + firstFrame + " and " + lastFrame + ".\n" );
+		if ( ends.isEmpty() )
+			return;
+
+		final MultiSeedSemiAutoTracker tracker = new MultiSeedSemiAutoTracker( model, selectionModel, sources, executor, logger );
+		tracker.setParameters( qualityThreshold, distanceTolerance, nFrames );
+		tracker.setSeeds( ends );
+		tracker.setLastFrame( lastFrame );
+		if ( !tracker.checkInput() || !tracker.process() )
+		{
+			logger.error( tracker.getErrorMessage() );
+			return;
+		}
+		logger.log( tracker.getSummary() );
+
+		/*
+		 * Per-track outcomes.
+		 */
+
+		final TrackModel trackModel = model.getTrackModel();
+		final String headings = "Seed\tTrack\tFrame\tEnd frame\tSpots added\tOutcome";
+		final StringBuilder str = new StringBuilder();
+		for ( final Object o : tracker.getResults() )
+		{
+			final Seed result = ( Seed ) o;
+			final Spot seed = result.getSeed();
+			str.append( seed.ID() ).append( '\t' )
+					.append( trackModel.trackIDOf( seed ) ).append( '\t' )
+					.append( seed.getFeature( Spot.FRAME ).intValue() ).append( '\t' )
+					.append( result.getEnd().getFeature( Spot.FRAME ).intValue() ).append( '\t' )
+					.append( result.getNSpotsAdded() ).append( '\t' )
+					.append( result.getOutcome() ).append( '\n' );
+		}
+		new TextWindow( NAME, headings, str.toString(), 600, 400 );
+	}
+
+	/**
+	 * Returns the spots of all the tracks that have no successor, and are in
+	 * the specified frame interval, excluding its last frame.
+	 */
+	public static List< Spot > getTrackEnds( final Model model, final int firstFrame, final int lastFrame )
+	{
+		final TrackModel trackModel = model.getTrackModel();
+		final List< Spot > ends = new ArrayList<>();
+		for ( final Integer trackID : trackModel.trackIDs( true ) )
+		{
+			for ( final Spot spot : trackModel.trackSpots( trackID ) )
+			{
+				final int frame = spot.getFeature( Spot.FRAME ).intValue();
+				if ( frame < firstFrame || frame >= lastFrame )
+					continue;
+
+				if ( !hasSuccessor( trackModel, spot, frame ) )
+					ends.add( spot );
+			}
+		}
+		return ends;
+	}
+
+	private static boolean hasSuccessor( final TrackModel trackModel, final Spot spot, final int frame )
+	{
+		final Set< DefaultWeightedEdge > edges = trackModel.edgesOf( spot );
+		for ( final DefaultWeightedEdge edge : edges )
+		{
+			Spot other = trackModel.getEdgeSource( edge );
+			if ( other == spot )
+				other = trackModel.getEdgeTarget( edge );
+			if ( other.getFeature( Spot.FRAME ).intValue() > frame )
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.action;
+
+import java.awt.Frame;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.mamut.MaMuT;
+import fiji.plugin.mamut.SourceSettings;
+import fiji.plugin.mamut.gui.MamutGUIModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.TrackMateAction;
+import fiji.plugin.trackmate.gui.Icons;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import ij.gui.GenericDialog;
+
+@Plugin( type = MamutActionFactory.class )
+public class MamutExtendTrackEndsActionFactory implements MamutActionFactory
+{
+
+	private static int firstFrame = 0;
+
+	private static int lastFrame = -1;
+
+	@Override
+	public String getInfoText()
+	{
+		return MamutExtendTrackEndsAction.INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return Icons.EXECUTE_ICON;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return MamutExtendTrackEndsAction.KEY;
+	}
+
+	@Override
+	public String getName()
+	{
+		return MamutExtendTrackEndsAction.NAME;
+	}
+
+	@Override
+	public TrackMateAction create( final MaMuT mamut )
+	{
+
+		/*
+		 * Create dialog
+		 */
+
+		final SpotCollection spots = mamut.getTrackMate().getModel().getSpots();
+		final int maxFrame = spots.keySet().isEmpty() ? 0 : spots.keySet().last();
+		if ( lastFrame < 0 || lastFrame > maxFrame )
+			lastFrame = maxFrame;
+
+		final GenericDialog dialog = new GenericDialog( "Extend all track ends", mamut.getGUI() );
+		dialog.addNumericField( "First frame:", firstFrame, 0 );
+		dialog.addNumericField( "Last frame:", lastFrame, 0 );
+		dialog.addMessage( "Tracking parameters are taken from the\nsemi-automatic tracking panel." );
+
+		// Show & Read user input
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+		{
+			// Return dummy action.
+			return new TrackMateAction()
+			{
+
+				@Override
+				public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+				{}
+
+				@Override
+				public void setLogger( final Logger logger )
+				{}
+			};
+		}
+
+		firstFrame = ( int ) dialog.getNextNumber();
+		lastFrame = ( int ) dialog.getNextNumber();
+
+		final SourceSettings settings = ( SourceSettings ) mamut.getTrackMate().getSettings();
+		final MamutGUIModel guimodel = mamut.getGuimodel();
+		return new MamutExtendTrackEndsAction(
+				settings.getSources(),
+				mamut.getTrackingExecutor(),
+				guimodel.qualityThreshold,
+				guimodel.distanceTolerance,
+				guimodel.maxNFrames,
+				firstFrame,
+				lastFrame );
+	}
+}
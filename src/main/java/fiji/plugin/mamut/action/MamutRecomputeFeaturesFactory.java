@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.action;
+
+import java.awt.Frame;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.mamut.MaMuT;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.TrackMateAction;
+import fiji.plugin.trackmate.gui.Icons;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+
+@Plugin( type = MamutActionFactory.class )
+public class MamutRecomputeFeaturesFactory implements MamutActionFactory
+{
+
+	private static final String INFO_TEXT = "<html>"
+			+ "Recomputes all the spot, edge and track features of the model. "
+			+ "<p> "
+			+ "Computation runs in the background. Its progress is displayed at "
+			+ "the bottom of the annotation panel, where it can be cancelled."
+			+ "</html>";
+
+	private static final String KEY = "RECOMPUTE_FEATURES";
+
+	private static final String NAME = "Recompute all features";
+
+	@Override
+	public String getInfoText()
+	{
+		return INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return Icons.CALCULATOR_ICON;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public TrackMateAction create( final MaMuT mamut )
+	{
+		return new RecomputeFeaturesAction( mamut );
+	}
+
+	private static final class RecomputeFeaturesAction implements TrackMateAction
+	{
+
+		private final MaMuT mamut;
+
+		private Logger logger = Logger.IJ_LOGGER;
+
+		public RecomputeFeaturesAction( final MaMuT mamut )
+		{
+			this.mamut = mamut;
+		}
+
+		@Override
+		public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+		{
+			logger.log( "Recomputing all features.\n" );
+			mamut.recomputeFeatures();
+		}
+
+		@Override
+		public void setLogger( final Logger logger )
+		{
+			this.logger = logger;
+		}
+	}
+}
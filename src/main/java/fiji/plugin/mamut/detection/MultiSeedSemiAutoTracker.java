@@ -0,0 +1,556 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.detection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import bdv.viewer.SourceAndConverter;
+import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.Spot;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Semi-automated tracking of all the selected spots at once.
+ * <p>
+ * Each selected spot is the seed of a track that is extended frame by frame,
+ * with the same detection scheme as {@link SourceSemiAutoTracker}. All the
+ * tracks are advanced together by steps: at each step, the next spot of every
+ * track is detected concurrently on the specified executor, then all the
+ * spots found are added to the model in a single update.
+ * <p>
+ * When two tracks claim the same detection in a frame (their new spots are
+ * closer than the radius of either), the track whose detection is closest to
+ * its previous spot wins, then the one with the smallest seed ID. The other
+ * track stops there. The results are therefore independent of the thread
+ * scheduling.
+ * <p>
+ * Tracks can be extended forward in time, backward in time to find the
+ * predecessors of the seeds, or in both directions at once. In the latter
+ * case each seed starts two tracks, that are advanced together.
+ * <p>
+ * The seeds are the selected spots, unless they are specified with
+ * {@link #setSeeds(Collection)}. The outcome of every track is available
+ * after processing with {@link #getResults()}.
+ *
+ * @param <T>
+ *            the type of the sources.
+ */
+public class MultiSeedSemiAutoTracker< T extends RealType< T > & NativeType< T > > implements Algorithm
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[MultiSeedSemiAutoTracker] ";
+
+	private final Model model;
+
+	private final SelectionModel selectionModel;
+
+	private final List< SourceAndConverter< T > > sources;
+
+	private final ExecutorService executor;
+
+	private final Logger logger;
+
+	private double qualityThreshold = 0.5;
+
+	private double distanceTolerance = 0.5;
+
+	private int nFrames = 10;
+
+	private int firstFrame = 0;
+
+	private int lastFrame = Integer.MAX_VALUE;
+
+	private Direction direction = Direction.FORWARD;
+
+	private boolean multiView = false;
+
+	private Collection< Spot > seeds;
+
+	private List< Seed > results = Collections.emptyList();
+
+	private String errorMessage;
+
+	/**
+	 * In which direction of time tracks are extended.
+	 */
+	public enum Direction
+	{
+		FORWARD( "Forward" ),
+		BACKWARD( "Backward" ),
+		BOTH( "Both directions" );
+
+		private final String name;
+
+		private Direction( final String name )
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * Why the extension of a track stopped.
+	 */
+	public enum Outcome
+	{
+		MAX_FRAMES( "reached the max number of frames" ),
+		LAST_FRAME( "reached the end of the frame range" ),
+		NOT_FOUND( "no suitable spot found" ),
+		CONFLICT( "detection claimed by another track" ),
+		ERROR( "error" );
+
+		private final String description;
+
+		private Outcome( final String description )
+		{
+			this.description = description;
+		}
+
+		@Override
+		public String toString()
+		{
+			return description;
+		}
+	}
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a new multi-seed tracker.
+	 *
+	 * @param model
+	 *            the model to add spots to.
+	 * @param selectionModel
+	 *            the selection model, whose spot selection gives the seeds.
+	 * @param sources
+	 *            the image sources.
+	 * @param executor
+	 *            the executor to run detections on. Its size bounds the
+	 *            number of detections run concurrently.
+	 * @param logger
+	 *            a logger to report progress to.
+	 */
+	public MultiSeedSemiAutoTracker( final Model model, final SelectionModel selectionModel, final List< SourceAndConverter< T > > sources, final ExecutorService executor, final Logger logger )
+	{
+		this.model = model;
+		this.selectionModel = selectionModel;
+		this.sources = sources;
+		this.executor = executor;
+		this.logger = logger;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Sets the tracking parameters.
+	 *
+	 * @param qualityThreshold
+	 *            the fraction of the seed quality found spots must have.
+	 * @param distanceTolerance
+	 *            the maximal distance to the previous spot, in units of its
+	 *            radius.
+	 * @param nFrames
+	 *            how many frames to track at most. 0 or negative for no
+	 *            limit.
+	 */
+	public void setParameters( final double qualityThreshold, final double distanceTolerance, final int nFrames )
+	{
+		this.qualityThreshold = qualityThreshold;
+		this.distanceTolerance = distanceTolerance;
+		this.nFrames = nFrames;
+	}
+
+	/**
+	 * Sets the spots to extend. If <code>null</code>, the spots in the
+	 * selection are extended.
+	 */
+	public void setSeeds( final Collection< Spot > seeds )
+	{
+		this.seeds = seeds;
+	}
+
+	/**
+	 * Sets the direction in time tracks are extended in. Forward by default.
+	 */
+	public void setDirection( final Direction direction )
+	{
+		this.direction = direction;
+	}
+
+	/**
+	 * Sets whether the next spot of every track is searched in all the
+	 * sources, keeping the best quality one, rather than only in the source
+	 * of the current spot. Off by default.
+	 *
+	 * @see SourceSemiAutoTracker#setMultiView(boolean)
+	 */
+	public void setMultiView( final boolean multiView )
+	{
+		this.multiView = multiView;
+	}
+
+	/**
+	 * Sets the first frame tracks can be extended to, backward. 0 by
+	 * default.
+	 */
+	public void setFirstFrame( final int firstFrame )
+	{
+		this.firstFrame = firstFrame;
+	}
+
+	/**
+	 * Sets the last frame tracks can be extended to, forward. No limit by
+	 * default.
+	 */
+	public void setLastFrame( final int lastFrame )
+	{
+		this.lastFrame = lastFrame;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( sources == null )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "source is null.";
+			return false;
+		}
+		if ( getSeeds().isEmpty() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + ( null == seeds ? "no spot in selection." : "no seed spot." );
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final SourceSemiAutoTracker< T > stepper = new SourceSemiAutoTracker<>( model, selectionModel, sources, logger );
+		stepper.setParameters( qualityThreshold, distanceTolerance, nFrames );
+		stepper.setMultiView( multiView );
+
+		// Seeds, sorted by ID for determinism.
+		final List< Seed > active = new ArrayList<>();
+		for ( final Spot spot : getSeeds() )
+		{
+			if ( null == spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID ) )
+			{
+				logger.log( "Spot: " + spot + ": The source index of given spot is not set.\n" );
+				continue;
+			}
+			if ( direction != Direction.BACKWARD )
+				active.add( new Seed( spot, 1 ) );
+			if ( direction != Direction.FORWARD )
+				active.add( new Seed( spot, -1 ) );
+		}
+		active.sort( Comparator.comparingInt( ( final Seed s ) -> s.seed.ID() ).thenComparingInt( s -> -s.direction ) );
+		final List< Seed > ends = new ArrayList<>( active );
+		results = Collections.unmodifiableList( ends );
+		final long start = System.currentTimeMillis();
+		logger.log( "Semi-automatic tracking of " + active.size() + " spots.\n" );
+
+		int nAdded = 0;
+		for ( int step = 0; !active.isEmpty() && ( nFrames <= 0 || step < nFrames ); step++ )
+		{
+			/*
+			 * Detect the next spot of every track concurrently.
+			 */
+
+			for ( final Seed seed : active )
+				if ( seed.targetFrame() > lastFrame || seed.targetFrame() < firstFrame )
+					seed.outcome = Outcome.LAST_FRAME;
+			active.removeIf( seed -> null != seed.outcome );
+
+			final List< Future< Spot > > futures = new ArrayList<>( active.size() );
+			for ( final Seed seed : active )
+			{
+				final int frame = seed.targetFrame();
+				futures.add( executor.submit( () -> stepper.detectNext( seed.current, frame, seed.referenceQuality ) ) );
+			}
+
+			final List< Seed > candidates = new ArrayList<>( active.size() );
+			for ( int i = 0; i < active.size(); i++ )
+			{
+				final Seed seed = active.get( i );
+				try
+				{
+					seed.next = futures.get( i ).get();
+				}
+				catch ( final InterruptedException e )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "interrupted.";
+					return false;
+				}
+				catch ( final ExecutionException e )
+				{
+					logger.error( "Spot: " + seed.current + ": " + e.getCause() + '\n' );
+					seed.next = null;
+					seed.outcome = Outcome.ERROR;
+					continue;
+				}
+				if ( null != seed.next )
+					candidates.add( seed );
+				else
+					seed.outcome = Outcome.NOT_FOUND;
+			}
+
+			/*
+			 * Resolve conflicts: closest first, then smallest seed ID.
+			 */
+
+			for ( final Seed seed : candidates )
+				seed.distance = Math.sqrt( seed.next.squareDistanceTo( seed.current ) );
+			candidates.sort( Comparator.comparingDouble( ( final Seed s ) -> s.distance )
+					.thenComparingInt( s -> s.seed.ID() )
+					.thenComparingInt( s -> -s.direction ) );
+
+			final List< Seed > accepted = new ArrayList<>( candidates.size() );
+			for ( final Seed seed : candidates )
+			{
+				final Seed winner = findConflict( seed, accepted );
+				if ( null == winner )
+				{
+					accepted.add( seed );
+				}
+				else
+				{
+					seed.outcome = Outcome.CONFLICT;
+					if ( null == seeds )
+						logger.log( "Spot: " + seed.current + ": detection claimed by the track of spot " + winner.seed + ", stopping.\n" );
+				}
+			}
+
+			/*
+			 * Add all the spots found in a single update.
+			 */
+
+			model.beginUpdate();
+			try
+			{
+				for ( final Seed seed : accepted )
+				{
+					final int frame = seed.targetFrame();
+					seed.next.putFeature( Spot.POSITION_T, Double.valueOf( frame ) );
+					model.addSpotTo( seed.next, frame );
+					// Backward, the new spot is the predecessor.
+					if ( seed.direction > 0 )
+						model.addEdge( seed.current, seed.next, -1 );
+					else
+						model.addEdge( seed.next, seed.current, -1 );
+				}
+			}
+			finally
+			{
+				model.endUpdate();
+			}
+			nAdded += accepted.size();
+
+			for ( final Seed seed : accepted )
+			{
+				if ( Double.isNaN( seed.referenceQuality ) )
+					seed.referenceQuality = seed.next.getFeature( Spot.QUALITY ).doubleValue();
+				seed.current = seed.next;
+				seed.next = null;
+				seed.nAdded++;
+			}
+			active.retainAll( accepted );
+		}
+		for ( final Seed seed : active )
+			seed.outcome = Outcome.MAX_FRAMES;
+
+		// Select the track ends, so that tracking can be resumed.
+		if ( null == seeds )
+		{
+			selectionModel.clearSpotSelection();
+			for ( final Seed seed : ends )
+				selectionModel.addSpotToSelection( seed.current );
+		}
+
+		final long end = System.currentTimeMillis();
+		logger.log( String.format( "Added %d spots to %d tracks in %.1f s.\n", nAdded, ends.size(), ( end - start ) / 1000. ) );
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns the outcome of the extension of every seed, sorted by seed ID,
+	 * forward first.
+	 */
+	public List< Seed > getResults()
+	{
+		return results;
+	}
+
+	/**
+	 * Returns a summary of the outcomes, with the number of tracks per
+	 * outcome.
+	 */
+	public String getSummary()
+	{
+		final Map< Outcome, Integer > counts = new EnumMap<>( Outcome.class );
+		int nAdded = 0;
+		for ( final Seed seed : results )
+		{
+			counts.merge( seed.outcome, 1, Integer::sum );
+			nAdded += seed.nAdded;
+		}
+		final StringBuilder str = new StringBuilder();
+		str.append( String.format( "Extended %d tracks with %d spots.\n", results.size(), nAdded ) );
+		for ( final Outcome outcome : counts.keySet() )
+			str.append( String.format( " - %d tracks stopped: %s.\n", counts.get( outcome ), outcome ) );
+		return str.toString();
+	}
+
+	private Collection< Spot > getSeeds()
+	{
+		return null == seeds ? selectionModel.getSpotSelection() : seeds;
+	}
+
+	/**
+	 * Returns the accepted seed whose new spot overlaps the new spot of the
+	 * specified seed, or <code>null</code> if there is none.
+	 */
+	private static Seed findConflict( final Seed seed, final List< Seed > accepted )
+	{
+		final int frame = seed.targetFrame();
+		final double radius = seed.next.getFeature( Spot.RADIUS ).doubleValue();
+		for ( final Seed other : accepted )
+		{
+			if ( other.targetFrame() != frame )
+				continue;
+
+			final double r = Math.max( radius, other.next.getFeature( Spot.RADIUS ).doubleValue() );
+			if ( seed.next.squareDistanceTo( other.next ) < r * r )
+				return other;
+		}
+		return null;
+	}
+
+	/**
+	 * The extension of one seed spot.
+	 */
+	public static final class Seed
+	{
+
+		private final Spot seed;
+
+		private Spot current;
+
+		private Spot next;
+
+		private double distance;
+
+		private int nAdded = 0;
+
+		private Outcome outcome;
+
+		/** 1 for forward, -1 for backward. */
+		private final int direction;
+
+		/**
+		 * The quality found spots must have a fraction of. NaN until known,
+		 * if the seed was created manually.
+		 */
+		private double referenceQuality;
+
+		private Seed( final Spot seed, final int direction )
+		{
+			this.seed = seed;
+			this.direction = direction;
+			this.current = seed;
+			final Double quality = seed.getFeature( Spot.QUALITY );
+			this.referenceQuality = ( null == quality || quality.doubleValue() < 0 ) ? Double.NaN : quality.doubleValue();
+		}
+
+		/**
+		 * Returns the seed spot.
+		 */
+		public Spot getSeed()
+		{
+			return seed;
+		}
+
+		/**
+		 * Returns the last spot of the extended track. The seed if no spot
+		 * was added.
+		 */
+		public Spot getEnd()
+		{
+			return current;
+		}
+
+		public int getNSpotsAdded()
+		{
+			return nAdded;
+		}
+
+		public Outcome getOutcome()
+		{
+			return outcome;
+		}
+
+		/**
+		 * Returns whether this seed was extended backward in time.
+		 */
+		public boolean isBackward()
+		{
+			return direction < 0;
+		}
+
+		/**
+		 * Returns the frame the next spot of this track is searched in.
+		 */
+		private int targetFrame()
+		{
+			return current.getFeature( Spot.FRAME ).intValue() + direction;
+		}
+	}
+}
@@ -21,16 +21,29 @@
  */
 package fiji.plugin.mamut.detection;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
 
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
+import fiji.plugin.mamut.util.BlockCopy;
+import fiji.plugin.mamut.util.CellPrefetcher;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.SelectionModel;
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.LogDetector;
 import fiji.plugin.trackmate.detection.semiauto.AbstractSemiAutoTracker;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
@@ -41,6 +54,7 @@ import net.imglib2.position.transform.Round;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 /**
@@ -77,8 +91,42 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 	/** The minimal diameter size, in pixel, under which we stop down-sampling. */
 	private static final double MIN_SPOT_PIXEL_SIZE = 5d;
 
+	/** Maximal number of prefetch requests waiting to be processed. */
+	private static final int PREFETCH_QUEUE_SIZE = 16;
+
+	/**
+	 * Threads loading the image data of the next neighborhoods, shared by all
+	 * trackers. When many seeds are tracked, requests pile up faster than
+	 * they are served. The oldest ones, that are for steps probably already
+	 * done, are then dropped.
+	 */
+	private static final ExecutorService PREFETCH_EXECUTOR = new ThreadPoolExecutor( 2, 2, 0l, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>( PREFETCH_QUEUE_SIZE ),
+			r -> {
+				final Thread thread = new Thread( r, "MaMuT semi-automated tracking prefetch thread" );
+				thread.setDaemon( true );
+				return thread;
+			},
+			new ThreadPoolExecutor.DiscardOldestPolicy() );
+
+	/**
+	 * Threads detecting spots in all the sources in multi-view mode, shared
+	 * by all trackers.
+	 */
+	private static final ExecutorService MULTI_VIEW_EXECUTOR = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), r -> {
+		final Thread thread = new Thread( r, "MaMuT multi-view semi-automated tracking thread" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
 	private final List< SourceAndConverter< T >> sources;
 
+	private boolean prefetch = true;
+
+	private boolean copyToArrayImg = true;
+
+	private boolean multiView = false;
+
 	/*
 	 * CONSTRUCTOR
 	 */
@@ -107,6 +155,21 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 
 	@Override
 	protected SearchRegion< T > getNeighborhood( final Spot spot, final int frame )
+	{
+		final Double so = spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID );
+		if ( null == so )
+		{
+			logger.log( "Spot: " + spot + ": The source index of given spot is not set." );
+			return null;
+		}
+		return getNeighborhood( spot, frame, so.intValue() );
+	}
+
+	/**
+	 * Returns the neighborhood of the specified spot in the specified frame
+	 * of the specified source.
+	 */
+	private SearchRegion< T > getNeighborhood( final Spot spot, final int frame, final int sourceIndex )
 	{
 
 		final double radius = spot.getFeature( Spot.RADIUS );
@@ -115,13 +178,6 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 		 * Source, rai and transform
 		 */
 
-		final Double so = spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID );
-		if ( null == so )
-		{
-			logger.log( "Spot: " + spot + ": The source index of given spot is not set." );
-			return null;
-		}
-		final int sourceIndex = so.intValue();
 		final Source< T > source = sources.get( sourceIndex ).getSpimSource();
 
 		if ( !source.isPresent( frame ) )
@@ -201,6 +257,14 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 		final long r = ( long ) Math.ceil( neighborhoodFactor * radius / dx );
 		final long rz = ( long ) Math.ceil( neighborhoodFactor * radius / dz );
 
+		/*
+		 * In multi-view mode, the spot may be outside the field of view of
+		 * this source. There is nothing to search then.
+		 */
+
+		if ( !Intervals.contains( rai, roundedSourcePos ) )
+			return null;
+
 		/*
 		 * Ensure quality
 		 */
@@ -260,14 +324,264 @@ public class SourceSemiAutoTracker< T extends RealType< T > & NativeType< T >> e
 		}
 		final AffineTransform3D transform = sourceToGlobal.copy().concatenate( scale );
 
+		/*
+		 * Start loading the neighborhood we will need at the next step, while
+		 * this one is processed.
+		 */
+
+		if ( prefetch )
+		{
+			// Backward tracking searches frames before the spot.
+			final int direction = frame < spot.getFeature( Spot.FRAME ).intValue() ? -1 : 1;
+			prefetchNext( spot, source, frame + direction, direction, level, neighborhoodFactor * radius );
+		}
+
+		/*
+		 * Copy the search region to flat memory, so that the detector does not
+		 * read through the cells of the source.
+		 */
+
+		final RandomAccessibleInterval< T > data = copyToArrayImg ? BlockCopy.copyToArrayImg( rai, interval ) : rai;
+
 		final SearchRegion< T > sn = new SearchRegion<>();
-		sn.source = Views.dropSingletonDimensions( rai );
+		sn.source = Views.dropSingletonDimensions( data );
 		sn.interval = interval;
 		sn.transform = transform;
 		sn.calibration = calibration;
 		return sn;
 	}
 
+	/**
+	 * Detects the spot that follows the specified spot in the specified
+	 * frame, without adding it to the model. Can be called concurrently.
+	 * <p>
+	 * The candidate detections are filtered by quality, then the closest one
+	 * to the specified spot is retained if it is within the distance
+	 * tolerance.
+	 * <p>
+	 * In multi-view mode, detection is run in all the sources in parallel,
+	 * and the spot found with the best quality is retained. Its source index
+	 * is set to the source it was found in. Otherwise detection is run in the
+	 * source of the specified spot.
+	 *
+	 * @param spot
+	 *            the spot to continue.
+	 * @param frame
+	 *            the frame to search. Can be before the frame of the spot,
+	 *            for backward tracking.
+	 * @param referenceQuality
+	 *            the quality the found spot must have a fraction of, as set
+	 *            by the quality threshold. If {@link Double#NaN}, quality is
+	 *            not checked.
+	 * @return a new spot, in global coordinates, with its radius and source
+	 *         index set, or <code>null</code> if no suitable spot could be
+	 *         found.
+	 */
+	public Spot detectNext( final Spot spot, final int frame, final double referenceQuality )
+	{
+		final Double so = spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID );
+		if ( !multiView || sources.size() < 2 )
+		{
+			if ( null == so )
+			{
+				logger.log( "Spot: " + spot + ": The source index of given spot is not set." );
+				return null;
+			}
+			return detect( spot, frame, so.intValue(), referenceQuality );
+		}
+
+		/*
+		 * Detect in all the sources in parallel, and keep the best quality.
+		 */
+
+		final List< Future< Spot > > futures = new ArrayList<>( sources.size() );
+		for ( int i = 0; i < sources.size(); i++ )
+		{
+			final int sourceIndex = i;
+			futures.add( MULTI_VIEW_EXECUTOR.submit( () -> detect( spot, frame, sourceIndex, referenceQuality ) ) );
+		}
+
+		Spot best = null;
+		for ( final Future< Spot > future : futures )
+		{
+			final Spot target;
+			try
+			{
+				target = future.get();
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				logger.error( "Spot: " + spot + ": " + e.getMessage() + '\n' );
+				continue;
+			}
+			// Ties go to the smallest source index.
+			if ( null != target && ( null == best || target.getFeature( Spot.QUALITY ) > best.getFeature( Spot.QUALITY ) ) )
+				best = target;
+		}
+		return best;
+	}
+
+	/**
+	 * Detects the spot that follows the specified spot in the specified frame
+	 * of the specified source.
+	 */
+	private Spot detect( final Spot spot, final int frame, final int sourceIndex, final double referenceQuality )
+	{
+		final SearchRegion< T > sn = getNeighborhood( spot, frame, sourceIndex );
+		if ( null == sn )
+			return null;
+
+		final double radius = spot.getFeature( Spot.RADIUS );
+		final LogDetector< T > detector = new LogDetector<>( sn.source, sn.interval, sn.calibration, radius, 0., true, false );
+		detector.setNumThreads( 1 );
+		if ( !detector.checkInput() || !detector.process() )
+		{
+			logger.error( "Spot: " + spot + ": " + detector.getErrorMessage() + '\n' );
+			return null;
+		}
+
+		final double minQuality = Double.isNaN( referenceQuality ) ? Double.NEGATIVE_INFINITY : qualityThreshold * referenceQuality;
+		final double maxDistance = distanceTolerance * radius;
+		final double[] pos = new double[ 3 ];
+		Spot target = null;
+		double minD2 = maxDistance * maxDistance;
+		for ( final Spot candidate : detector.getResult() )
+		{
+			final double quality = candidate.getFeature( Spot.QUALITY ).doubleValue();
+			if ( quality < minQuality )
+				continue;
+
+			// Back to global coordinates.
+			candidate.localize( pos );
+			sn.transform.apply( pos, pos );
+			final double dx = pos[ 0 ] - spot.getDoublePosition( 0 );
+			final double dy = pos[ 1 ] - spot.getDoublePosition( 1 );
+			final double dz = pos[ 2 ] - spot.getDoublePosition( 2 );
+			final double d2 = dx * dx + dy * dy + dz * dz;
+			if ( d2 > minD2 )
+				continue;
+
+			minD2 = d2;
+			target = new Spot( pos[ 0 ], pos[ 1 ], pos[ 2 ], radius, quality );
+		}
+
+		if ( null != target )
+			target.putFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID, Double.valueOf( sourceIndex ) );
+		return target;
+	}
+
+	/**
+	 * Sets whether {@link #detectNext(Spot, int, double)} searches all the
+	 * sources for the next spot, rather than only the source of the current
+	 * spot. Off by default.
+	 */
+	public void setMultiView( final boolean multiView )
+	{
+		this.multiView = multiView;
+	}
+
+	public boolean isMultiView()
+	{
+		return multiView;
+	}
+
+	/**
+	 * Sets whether the image data of the neighborhood searched at the next
+	 * step is loaded in the background, while the current step is processed.
+	 * On by default.
+	 */
+	public void setPrefetch( final boolean prefetch )
+	{
+		this.prefetch = prefetch;
+	}
+
+	public boolean isPrefetch()
+	{
+		return prefetch;
+	}
+
+	/**
+	 * Sets whether the search region is copied block-wise into a contiguous
+	 * {@link net.imglib2.img.array.ArrayImg} before detection, instead of
+	 * being read by the detector directly from the source. On by default.
+	 */
+	public void setCopyToArrayImg( final boolean copyToArrayImg )
+	{
+		this.copyToArrayImg = copyToArrayImg;
+	}
+
+	public boolean isCopyToArrayImg()
+	{
+		return copyToArrayImg;
+	}
+
+	/**
+	 * Loads in the cache of the source the cells covering the neighborhood
+	 * that will be searched in the specified frame, if the spot found in the
+	 * current frame moved as the specified spot did in the previous one.
+	 */
+	private void prefetchNext( final Spot spot, final Source< T > source, final int frame, final int direction, final int level, final double halfSize )
+	{
+		if ( !source.isPresent( frame ) )
+			return;
+
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		source.getSourceTransform( frame, level, sourceToGlobal );
+		final RandomAccessibleInterval< T > rai = source.getSource( frame, level );
+
+		final double[] center = predictNextPosition( spot, direction );
+		sourceToGlobal.applyInverse( center, center );
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			final long r = ( long ) Math.ceil( halfSize / Affine3DHelpers.extractScale( sourceToGlobal, d ) );
+			final long c = Math.round( center[ d ] );
+			min[ d ] = c - r;
+			max[ d ] = c + r;
+		}
+		CellPrefetcher.prefetch( rai, new FinalInterval( min, max ), PREFETCH_EXECUTOR, 1 );
+	}
+
+	/**
+	 * Returns the position of the specified spot, moved by one frame in the
+	 * specified direction of time at its velocity relative to its neighbor in
+	 * the other direction, if it has one.
+	 */
+	private double[] predictNextPosition( final Spot spot, final int direction )
+	{
+		final double[] pos = new double[ 3 ];
+		spot.localize( pos );
+		final int frame = spot.getFeature( Spot.FRAME ).intValue();
+
+		// Other trackers may edit the model concurrently.
+		Spot other = null;
+		synchronized ( model )
+		{
+			if ( !model.getTrackModel().vertexSet().contains( spot ) )
+				return pos;
+
+			for ( final DefaultWeightedEdge edge : model.getTrackModel().edgesOf( spot ) )
+			{
+				Spot neighbor = model.getTrackModel().getEdgeSource( edge );
+				if ( neighbor == spot )
+					neighbor = model.getTrackModel().getEdgeTarget( edge );
+				if ( ( neighbor.getFeature( Spot.FRAME ).intValue() - frame ) * direction < 0 )
+				{
+					other = neighbor;
+					break;
+				}
+			}
+		}
+		if ( null == other )
+			return pos;
+
+		final int otherFrame = other.getFeature( Spot.FRAME ).intValue();
+		for ( int d = 0; d < 3; d++ )
+			pos[ d ] += direction * ( pos[ d ] - other.getDoublePosition( d ) ) / ( frame - otherFrame );
+		return pos;
+	}
+
 	@Override
 	protected void exposeSpot( final Spot newSpot, final Spot previousSpot )
 	{
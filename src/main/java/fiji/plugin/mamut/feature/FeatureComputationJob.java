@@ -0,0 +1,266 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the progress of a bulk feature computation, and allows cancelling
+ * it.
+ * <p>
+ * The computation reports the number of items it processed, the time spent in
+ * each analyzer and the errors it met. Listeners are notified on progress, at
+ * most every {@value #NOTIFICATION_PERIOD} ms, and when the job ends.
+ */
+public class FeatureComputationJob
+{
+
+	/**
+	 * Interface for listeners notified of the progress of a job.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when the job progressed, or ended. Can be called from any
+		 * thread.
+		 */
+		public void jobChanged( FeatureComputationJob job );
+	}
+
+	private static final long NOTIFICATION_PERIOD = 200;
+
+	private final String name;
+
+	private final String itemName;
+
+	private final long nItems;
+
+	private final AtomicLong processed = new AtomicLong( 0 );
+
+	/** Analyzer key &rarr; time spent, in ns. */
+	private final Map< String, AtomicLong > analyzerTimes = new ConcurrentHashMap<>();
+
+	private final List< Throwable > errors = new CopyOnWriteArrayList<>();
+
+	private final List< Listener > listeners = new CopyOnWriteArrayList<>();
+
+	private final long startTime = System.currentTimeMillis();
+
+	private final AtomicLong lastNotification = new AtomicLong( 0 );
+
+	private volatile long endTime = -1;
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Creates a new job.
+	 *
+	 * @param name
+	 *            the job name, for display.
+	 * @param itemName
+	 *            the name of the items processed, for display (e.g.
+	 *            "spots").
+	 * @param nItems
+	 *            the number of items to process.
+	 */
+	public FeatureComputationJob( final String name, final String itemName, final long nItems )
+	{
+		this.name = name;
+		this.itemName = itemName;
+		this.nItems = nItems;
+	}
+
+	/*
+	 * REPORTING, used by the computation.
+	 */
+
+	/**
+	 * Reports that the specified number of items were processed.
+	 */
+	public void processed( final long n )
+	{
+		processed.addAndGet( n );
+		final long now = System.currentTimeMillis();
+		final long last = lastNotification.get();
+		if ( now - last > NOTIFICATION_PERIOD && lastNotification.compareAndSet( last, now ) )
+			fireJobChanged();
+	}
+
+	/**
+	 * Adds the specified time to the time spent in the specified analyzer.
+	 *
+	 * @param analyzerKey
+	 *            the analyzer key.
+	 * @param nanos
+	 *            the time spent, in ns.
+	 */
+	public void addTime( final String analyzerKey, final long nanos )
+	{
+		analyzerTimes.computeIfAbsent( analyzerKey, k -> new AtomicLong() ).addAndGet( nanos );
+	}
+
+	/**
+	 * Reports an error that happened during the computation.
+	 */
+	public void error( final Throwable error )
+	{
+		errors.add( error );
+	}
+
+	/**
+	 * Marks this job as done, and notifies listeners.
+	 */
+	public void finish()
+	{
+		endTime = System.currentTimeMillis();
+		fireJobChanged();
+	}
+
+	/*
+	 * CONTROL.
+	 */
+
+	/**
+	 * Requests this job to stop. Items being processed are finished, the
+	 * others are skipped.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	public void addListener( final Listener listener )
+	{
+		listeners.add( listener );
+	}
+
+	public void removeListener( final Listener listener )
+	{
+		listeners.remove( listener );
+	}
+
+	/*
+	 * GETTERS.
+	 */
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public boolean isDone()
+	{
+		return endTime >= 0;
+	}
+
+	/**
+	 * Returns the fraction of items processed, from 0 to 1.
+	 */
+	public double getProgress()
+	{
+		return nItems == 0 ? 1. : ( double ) processed.get() / nItems;
+	}
+
+	/**
+	 * Returns the time elapsed since the job started, or its duration if it
+	 * is done, in ms.
+	 */
+	public long getElapsedTime()
+	{
+		return ( isDone() ? endTime : System.currentTimeMillis() ) - startTime;
+	}
+
+	/**
+	 * Returns the number of items processed per second.
+	 */
+	public double getThroughput()
+	{
+		final long elapsed = getElapsedTime();
+		return elapsed == 0 ? 0. : 1000. * processed.get() / elapsed;
+	}
+
+	/**
+	 * Returns the time spent in each analyzer, summed over threads, in ms,
+	 * slowest first.
+	 */
+	public Map< String, Long > getAnalyzerTimes()
+	{
+		final List< Map.Entry< String, AtomicLong > > entries = new ArrayList<>( analyzerTimes.entrySet() );
+		entries.sort( ( e1, e2 ) -> Long.compare( e2.getValue().get(), e1.getValue().get() ) );
+		final Map< String, Long > times = new LinkedHashMap<>( entries.size() );
+		for ( final Map.Entry< String, AtomicLong > entry : entries )
+			times.put( entry.getKey(), Long.valueOf( entry.getValue().get() / 1000000 ) );
+		return times;
+	}
+
+	public List< Throwable > getErrors()
+	{
+		return Collections.unmodifiableList( errors );
+	}
+
+	/**
+	 * Returns a one-line summary of the job status.
+	 */
+	public String getStatus()
+	{
+		final String state = cancelled ? "cancelled" : isDone() ? "done" : String.format( "%.0f%%", 100. * getProgress() );
+		return String.format( "%s: %s - %d/%d %s in %.1f s (%.0f %s/s)",
+				name, state, processed.get(), nItems, itemName,
+				getElapsedTime() / 1000., getThroughput(), itemName );
+	}
+
+	/**
+	 * Returns a multi-line report with the job status, the time spent in each
+	 * analyzer and the errors.
+	 */
+	public String getReport()
+	{
+		final StringBuilder str = new StringBuilder( getStatus() );
+		str.append( '\n' );
+		for ( final Map.Entry< String, Long > entry : getAnalyzerTimes().entrySet() )
+			str.append( String.format( " - %s: %d ms\n", entry.getKey(), entry.getValue() ) );
+		if ( !errors.isEmpty() )
+		{
+			str.append( " " + errors.size() + " error(s). First one:\n" );
+			str.append( " " + errors.get( 0 ) + "\n" );
+		}
+		return str.toString();
+	}
+
+	private void fireJobChanged()
+	{
+		for ( final Listener listener : listeners )
+			listener.jobChanged( this );
+	}
+}
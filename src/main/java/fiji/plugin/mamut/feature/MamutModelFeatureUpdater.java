@@ -22,16 +22,25 @@
 package fiji.plugin.mamut.feature;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
 
 import fiji.plugin.mamut.SourceSettings;
+import fiji.plugin.mamut.feature.track.CellDivisionTimeAnalyzer;
+import fiji.plugin.mamut.feature.track.IncrementalTrackFeatureCalculator;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.ModelChangeEvent;
 import fiji.plugin.trackmate.ModelChangeListener;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.features.EdgeFeatureCalculator;
 import fiji.plugin.trackmate.features.TrackFeatureCalculator;
+import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
 import net.imglib2.algorithm.MultiThreaded;
 
 /**
@@ -46,10 +55,20 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 	private final EdgeFeatureCalculator edgeFeatureCalculator;
 	private final TrackFeatureCalculator trackFeatureCalculator;
 
+	private final IncrementalTrackFeatureCalculator incrementalTrackFeatureCalculator;
+
 	private final Model model;
 
+	private final SourceSettings settings;
+
+	private boolean incrementalTrackFeatures = true;
+
 	private int numThreads;
 
+	private final List< FeatureComputationJob.Listener > jobListeners = new CopyOnWriteArrayList<>();
+
+	private final Set< FeatureComputationJob > runningJobs = new CopyOnWriteArraySet<>();
+
 	/**
 	 * Constructs and activate a {@code ModelFeatureUpdater}. The new instance
 	 * is registered to listen to model changes, and update its feature.
@@ -63,11 +82,13 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 	public MamutModelFeatureUpdater( final Model model, final SourceSettings settings )
 	{
 		this.model = model;
+		this.settings = settings;
 		// don't log feature computation for updates.
 		final boolean doLogIt = false;
 		this.mamutSpotFeatureCalculator = new MamutSpotFeatureCalculator( settings );
 		this.edgeFeatureCalculator = new EdgeFeatureCalculator( model, settings, doLogIt );
 		this.trackFeatureCalculator = new TrackFeatureCalculator( model, settings, doLogIt );
+		this.incrementalTrackFeatureCalculator = new IncrementalTrackFeatureCalculator( model );
 		model.addModelChangeListener( this );
 		setNumThreads();
 	}
@@ -84,9 +105,13 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 
 		// Build spot list
 		final ArrayList< Spot > spots = new ArrayList<>( event.getSpots().size() );
+		final ArrayList< Spot > removed = new ArrayList<>();
 		for ( final Spot spot : event.getSpots() )
 			if ( event.getSpotFlag( spot ) != ModelChangeEvent.FLAG_SPOT_REMOVED )
 				spots.add( spot );
+			else
+				removed.add( spot );
+		mamutSpotFeatureCalculator.discard( removed );
 
 		// Build edge list
 		final ArrayList< DefaultWeightedEdge > edges = new ArrayList<>( event.getEdges().size() );
@@ -101,16 +126,204 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 		edgeFeatureCalculator.computeEdgesFeatures( edges, false );
 
 		// Update track features
-		trackFeatureCalculator.computeTrackFeatures( event.getTrackUpdated(), false );
+		if ( incrementalTrackFeatures )
+			updateTrackFeatures( event );
+		else
+			trackFeatureCalculator.computeTrackFeatures( event.getTrackUpdated(), false );
+	}
+
+	/**
+	 * Updates the decomposable track features incrementally, and the other
+	 * ones with their analyzer.
+	 */
+	private void updateTrackFeatures( final ModelChangeEvent event )
+	{
+		incrementalTrackFeatureCalculator.modelChanged( event );
+
+		final Collection< Integer > trackIDs = event.getTrackUpdated();
+		if ( null == trackIDs )
+			return;
+
+		for ( final TrackAnalyzer analyzer : settings.getTrackAnalyzers() )
+		{
+			if ( IncrementalTrackFeatureCalculator.ANALYZER_KEYS.contains( analyzer.getKey() ) )
+				continue;
+
+			analyzer.setNumThreads( numThreads );
+			if ( analyzer instanceof CellDivisionTimeAnalyzer )
+				// Only recomputes the branches touched by the edit.
+				( ( CellDivisionTimeAnalyzer ) analyzer ).process( event, model );
+			else if ( analyzer.isLocal() )
+				analyzer.process( trackIDs, model );
+			else
+				analyzer.process( model.getTrackModel().trackIDs( false ), model );
+		}
+	}
+
+	/**
+	 * Sets whether the features of the track branching and track duration
+	 * analyzers are updated incrementally from the edits, rather than by
+	 * rescanning the modified tracks. On by default.
+	 *
+	 * @see IncrementalTrackFeatureCalculator
+	 */
+	public void setIncrementalTrackFeatures( final boolean incrementalTrackFeatures )
+	{
+		this.incrementalTrackFeatures = incrementalTrackFeatures;
+	}
+
+	/**
+	 * Recomputes all the spot, edge and track features of the model. Blocks
+	 * until done, and reports progress to the job listeners.
+	 * <p>
+	 * Computation is made of two jobs, one for the spot features and one for
+	 * the edge and track features, which is skipped if the first one was
+	 * cancelled.
+	 *
+	 * @return the jobs that tracked the computation.
+	 */
+	public List< FeatureComputationJob > computeAllFeatures()
+	{
+		final List< FeatureComputationJob > jobs = new ArrayList<>( 2 );
+		final FeatureComputationJob spotJob = mamutSpotFeatureCalculator.computeSpotFeatures( model.getSpots().iterable( false ) );
+		jobs.add( spotJob );
+		if ( spotJob.isCancelled() )
+			return jobs;
+
+		final List< EdgeAnalyzer > edgeAnalyzers = settings.getEdgeAnalyzers();
+		final List< TrackAnalyzer > trackAnalyzers = settings.getTrackAnalyzers();
+		final FeatureComputationJob job = new FeatureComputationJob( "Edge and track features", "analyzers", edgeAnalyzers.size() + trackAnalyzers.size() );
+		for ( final FeatureComputationJob.Listener listener : jobListeners )
+			job.addListener( listener );
+		jobs.add( job );
+		runningJobs.add( job );
+		try
+		{
+			final Set< Integer > trackIDs = model.getTrackModel().trackIDs( false );
+			final Collection< DefaultWeightedEdge > edges = new ArrayList<>( model.getTrackModel().edges() );
+			for ( final EdgeAnalyzer analyzer : edgeAnalyzers )
+			{
+				if ( job.isCancelled() )
+					return jobs;
+				final long start = System.nanoTime();
+				try
+				{
+					analyzer.setNumThreads( numThreads );
+					analyzer.process( edges, model );
+				}
+				catch ( final RuntimeException e )
+				{
+					job.error( e );
+				}
+				job.addTime( analyzer.getKey(), System.nanoTime() - start );
+				job.processed( 1 );
+			}
+			for ( final TrackAnalyzer analyzer : trackAnalyzers )
+			{
+				if ( job.isCancelled() )
+					return jobs;
+				final long start = System.nanoTime();
+				try
+				{
+					analyzer.setNumThreads( numThreads );
+					analyzer.process( trackIDs, model );
+				}
+				catch ( final RuntimeException e )
+				{
+					job.error( e );
+				}
+				job.addTime( analyzer.getKey(), System.nanoTime() - start );
+				job.processed( 1 );
+			}
+			return jobs;
+		}
+		finally
+		{
+			runningJobs.remove( job );
+			job.finish();
+		}
+	}
+
+	/**
+	 * Registers a listener that will be notified of the progress of the
+	 * feature computations, bulk or live.
+	 */
+	public void addJobListener( final FeatureComputationJob.Listener listener )
+	{
+		jobListeners.add( listener );
+		mamutSpotFeatureCalculator.addJobListener( listener );
+	}
+
+	public void removeJobListener( final FeatureComputationJob.Listener listener )
+	{
+		jobListeners.remove( listener );
+		mamutSpotFeatureCalculator.removeJobListener( listener );
+	}
+
+	/**
+	 * Cancels all the feature computations currently running.
+	 */
+	public void cancel()
+	{
+		mamutSpotFeatureCalculator.cancelAll();
+		for ( final FeatureComputationJob job : runningJobs )
+			job.cancel();
 	}
 
 	/**
 	 * Re-registers this instance from the listeners of the model, and stop
-	 * updating its features.
+	 * updating its features. The threads of the spot feature calculator are
+	 * stopped.
 	 */
 	public void quit()
 	{
 		model.removeModelChangeListener( this );
+		mamutSpotFeatureCalculator.quit();
+	}
+
+	/**
+	 * Sets the minimal number of pixels the diameter of a spot must span for
+	 * its features to be computed on a down-sampled resolution level.
+	 *
+	 * @see MamutSpotFeatureCalculator#setMinPixelsAcrossDiameter(double)
+	 */
+	public void setMinPixelsAcrossDiameter( final double minPixelsAcrossDiameter )
+	{
+		mamutSpotFeatureCalculator.setMinPixelsAcrossDiameter( minPixelsAcrossDiameter );
+	}
+
+	/**
+	 * Sets the keys of the spot analyzers whose features are only computed on
+	 * demand.
+	 *
+	 * @see MamutSpotFeatureCalculator#setLazyAnalyzers(java.util.Collection)
+	 */
+	public void setLazyAnalyzers( final Collection< String > analyzerKeys )
+	{
+		mamutSpotFeatureCalculator.setLazyAnalyzers( analyzerKeys );
+	}
+
+	/**
+	 * Computes the lazy spot features of the spots that changed since their
+	 * last computation, in another thread. Requests are coalesced.
+	 *
+	 * @see MamutSpotFeatureCalculator#updateStaleFeatures(Runnable)
+	 */
+	public void updateStaleFeatures( final Runnable callback )
+	{
+		mamutSpotFeatureCalculator.updateStaleFeatures( callback );
+	}
+
+	/**
+	 * Computes the lazy spot features of the spots that changed since their
+	 * last computation. Blocks until done.
+	 *
+	 * @return the number of spots whose features were computed.
+	 * @see MamutSpotFeatureCalculator#computeStaleFeatures()
+	 */
+	public int computeStaleFeatures()
+	{
+		return mamutSpotFeatureCalculator.computeStaleFeatures();
 	}
 
 	@Override
@@ -129,6 +342,7 @@ public class MamutModelFeatureUpdater implements ModelChangeListener, MultiThrea
 	public void setNumThreads( final int numThreads )
 	{
 		this.numThreads = numThreads;
+		mamutSpotFeatureCalculator.setNumThreads( numThreads );
 		edgeFeatureCalculator.setNumThreads( numThreads );
 		trackFeatureCalculator.setNumThreads( numThreads );
 	}
@@ -22,25 +22,42 @@
 package fiji.plugin.mamut.feature;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import fiji.plugin.mamut.SourceSettings;
+import fiji.plugin.mamut.util.CellPrefetcher;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
+import fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.img.ImgView;
@@ -49,123 +66,720 @@ import net.imglib2.realtransform.AffineTransform3D;
 /**
  * A class dedicated to centralizing the calculation of the numerical features
  * of spots, through {@link SpotAnalyzer}s, tuned for Mamut.
+ * <p>
+ * Computation runs on a bounded pool of worker threads, sized by
+ * {@link #setNumThreads(int)}. Asynchronous updates are coalesced: spots
+ * requested while a previous update is running or pending are queued only
+ * once, so that a burst of edits on the same spots triggers at most one more
+ * computation per spot.
+ * <p>
+ * Analyzers can be declared lazy with {@link #setLazyAnalyzers(Collection)}.
+ * Asynchronous updates then skip them and only mark the spots as stale. Their
+ * features are computed when they are actually needed, through
+ * {@link #computeStaleFeatures()}, and stay valid until the spot changes
+ * again.
  * 
  * @author Jean-Yves Tinevez - 2020
  * 
  */
-public class MamutSpotFeatureCalculator
+public class MamutSpotFeatureCalculator implements MultiThreaded
 {
 
+	/**
+	 * Minimal number of spots per task, so that small frames are not split
+	 * into tasks too small to be worth scheduling.
+	 */
+	private static final int MIN_CHUNK_SIZE = 16;
+
+	/**
+	 * Keys of the analyzers that are expensive to compute and only needed for
+	 * analysis and export: the intensity and contrast analyzers, that iterate
+	 * over all the voxels of a spot.
+	 */
+	public static final List< String > EXPENSIVE_ANALYZERS = Collections.unmodifiableList( Arrays.asList(
+			SpotIntensityMultiCAnalyzerFactory.KEY,
+			SpotContrastAndSNRAnalyzerFactory.KEY ) );
+
+	/**
+	 * Keys of the analyzers known to process each spot on its own, without
+	 * keeping a reference to it. They are given a single reused
+	 * {@link TransformedSpotView}, whose identity changes with each spot. The
+	 * other analyzers, for instance from third-party plugins, are given one
+	 * view per spot.
+	 */
+	private static final Set< String > VIEW_REUSING_ANALYZERS = Collections.unmodifiableSet( new HashSet<>( Arrays.asList(
+			SpotIntensityMultiCAnalyzerFactory.KEY,
+			SpotContrastAndSNRAnalyzerFactory.KEY ) ) );
+
+	private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger( 0 );
+
 	private final SourceSettings settings;
 
-	private final ExecutorService executor;
+	/** Runs the spot chunks. */
+	private final ThreadPoolExecutor executor;
+
+	/** Drains the queue of pending spots, one update at a time. */
+	private final ExecutorService dispatcher;
+
+	/**
+	 * Spots waiting for their features to be updated, in request order. Guarded
+	 * by itself.
+	 */
+	private final Set< Spot > pending = new LinkedHashSet<>();
+
+	/** Whether a drain of the pending spots is scheduled or running. */
+	private boolean draining = false;
+
+	/**
+	 * Whether the stale lazy features must be computed at the next drain.
+	 * Guarded by {@link #pending}.
+	 */
+	private boolean staleRequested = false;
+
+	/**
+	 * Called after the stale lazy features were computed by a drain. Guarded
+	 * by {@link #pending}.
+	 */
+	private final List< Runnable > staleCallbacks = new ArrayList<>();
+
+	private int numThreads;
+
+	private final List< FeatureComputationJob.Listener > jobListeners = new CopyOnWriteArrayList<>();
+
+	private final Set< FeatureComputationJob > runningJobs = new CopyOnWriteArraySet<>();
+
+	/**
+	 * Minimal number of pixels across a spot diameter to use a down-sampled
+	 * level. 0 or less to always use the full resolution level.
+	 */
+	private double minPixelsAcrossDiameter = 0.;
+
+	/**
+	 * Whether to load the image blocks covering a batch of spots before
+	 * processing it.
+	 */
+	private boolean prefetch = true;
+
+	/** Keys of the analyzers that are not run on asynchronous updates. */
+	private Set< String > lazyAnalyzers = Collections.emptySet();
+
+	/**
+	 * Spots whose lazy features are out of date. Guarded by itself.
+	 */
+	private final Set< Spot > stale = new HashSet<>();
 
 	public MamutSpotFeatureCalculator( final SourceSettings settings )
 	{
 		this.settings = settings;
-		this.executor = Executors.newCachedThreadPool();
+		final int id = INSTANCE_COUNT.incrementAndGet();
+		this.executor = new ThreadPoolExecutor( 1, 1, 30l, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				new NamedThreadFactory( "MaMuT spot feature calculator " + id + " thread " ) );
+		executor.allowCoreThreadTimeOut( true );
+		this.dispatcher = Executors.newSingleThreadExecutor( new NamedThreadFactory( "MaMuT spot feature dispatcher " + id + " thread " ) );
+		setNumThreads();
 	}
 
 	/**
 	 * Update the specified spot feature values.
 	 * <p>
 	 * Computation is done in another thread and this method returns
-	 * immediately.
+	 * immediately. Spots already waiting for an update are not queued twice.
 	 */
 	public void updateSpotFeatures( final Iterable< Spot > toCompute )
 	{
-		executor.execute( () -> computeSpotFeatures( toCompute ) );
+		if ( !lazyAnalyzers.isEmpty() )
+		{
+			synchronized ( stale )
+			{
+				for ( final Spot spot : toCompute )
+					stale.add( spot );
+			}
+		}
+
+		synchronized ( pending )
+		{
+			for ( final Spot spot : toCompute )
+				pending.add( spot );
+
+			if ( draining || pending.isEmpty() )
+				return;
+			draining = true;
+		}
+		dispatcher.execute( () -> drain() );
+	}
+
+	/**
+	 * Computes features for the pending spots until there is none left.
+	 */
+	private void drain()
+	{
+		while ( true )
+		{
+			final List< Spot > toCompute;
+			final List< Runnable > callbacks;
+			final boolean computeStale;
+			synchronized ( pending )
+			{
+				if ( pending.isEmpty() && !staleRequested )
+				{
+					draining = false;
+					return;
+				}
+				toCompute = new ArrayList<>( pending );
+				pending.clear();
+				computeStale = staleRequested;
+				callbacks = new ArrayList<>( staleCallbacks );
+				staleRequested = false;
+				staleCallbacks.clear();
+			}
+
+			// Errors are reported to the job listeners.
+			if ( !toCompute.isEmpty() )
+				computeSpotFeatures( toCompute, getFactories( false ), "Spot feature update" );
+
+			if ( computeStale )
+			{
+				computeStaleFeatures();
+				for ( final Runnable callback : callbacks )
+					callback.run();
+			}
+		}
 	}
 
 	/**
 	 * Update the specified spot feature values.
 	 * <p>
-	 * Computation is done in this thread, which blocks.
+	 * Computation is done in this thread, which blocks. The spots are split
+	 * in chunks per frame and per source, and all the chunks are processed in
+	 * parallel, so that frames with few spots do not leave threads idle.
+	 *
+	 * @return the job that tracked the computation, with timing and errors.
 	 */
-	public void computeSpotFeatures( final Iterable< Spot > toCompute )
+	public FeatureComputationJob computeSpotFeatures( final Iterable< Spot > toCompute )
+	{
+		final FeatureComputationJob job = computeSpotFeatures( toCompute, settings.getSpotAnalyzerFactories(), "Spot features" );
+		if ( !lazyAnalyzers.isEmpty() )
+		{
+			synchronized ( stale )
+			{
+				for ( final Spot spot : toCompute )
+					stale.remove( spot );
+			}
+		}
+		return job;
+	}
+
+	/**
+	 * Computes the features of the lazy analyzers for all the spots that
+	 * changed since their last computation. Computation is done in this
+	 * thread, which blocks.
+	 * <p>
+	 * This must be called before the lazy features are read, for instance
+	 * before displaying a table or saving the model.
+	 *
+	 * @return the number of spots whose features were computed.
+	 */
+	public int computeStaleFeatures()
+	{
+		final List< Spot > toCompute;
+		synchronized ( stale )
+		{
+			toCompute = new ArrayList<>( stale );
+			stale.clear();
+		}
+		if ( !toCompute.isEmpty() )
+			computeSpotFeatures( toCompute, getFactories( true ), "Lazy spot features" );
+		return toCompute.size();
+	}
+
+	/**
+	 * Computes the features of the lazy analyzers for all the spots that
+	 * changed since their last computation, in another thread, after the
+	 * pending updates. Requests made while a previous one is pending are
+	 * merged into it, so that a burst of requests triggers at most one more
+	 * computation.
+	 *
+	 * @param callback
+	 *            run in the calculator thread after the features were
+	 *            computed, even if there were no stale spots. The callbacks
+	 *            of all the merged requests are run.
+	 */
+	public void updateStaleFeatures( final Runnable callback )
+	{
+		synchronized ( pending )
+		{
+			staleRequested = true;
+			staleCallbacks.add( callback );
+			if ( draining )
+				return;
+			draining = true;
+		}
+		dispatcher.execute( () -> drain() );
+	}
+
+	/**
+	 * Forgets the specified spots, typically because they were removed from
+	 * the model. Their lazy features will not be computed.
+	 */
+	public void discard( final Iterable< Spot > spots )
+	{
+		synchronized ( stale )
+		{
+			for ( final Spot spot : spots )
+				stale.remove( spot );
+		}
+	}
+
+	/**
+	 * Sets the keys of the analyzers whose features are only computed on
+	 * demand, through {@link #computeStaleFeatures()}. Pass an empty
+	 * collection to compute all features on every update, which is the
+	 * default. The spots that were stale are then updated in another thread.
+	 *
+	 * @see #EXPENSIVE_ANALYZERS
+	 */
+	public void setLazyAnalyzers( final Collection< String > analyzerKeys )
+	{
+		this.lazyAnalyzers = Collections.unmodifiableSet( new HashSet<>( analyzerKeys ) );
+		if ( lazyAnalyzers.isEmpty() )
+		{
+			final List< Spot > toUpdate;
+			synchronized ( stale )
+			{
+				toUpdate = new ArrayList<>( stale );
+				stale.clear();
+			}
+			if ( !toUpdate.isEmpty() )
+				updateSpotFeatures( toUpdate );
+		}
+	}
+
+	public Set< String > getLazyAnalyzers()
+	{
+		return lazyAnalyzers;
+	}
+
+	/**
+	 * Returns the analyzer factories that are lazy, or the ones that are not.
+	 */
+	private List< SpotAnalyzerFactoryBase< ? > > getFactories( final boolean lazy )
+	{
+		final List< SpotAnalyzerFactoryBase< ? > > factories = new ArrayList<>();
+		for ( final SpotAnalyzerFactoryBase< ? > factory : settings.getSpotAnalyzerFactories() )
+			if ( lazyAnalyzers.contains( factory.getKey() ) == lazy )
+				factories.add( factory );
+		return factories;
+	}
+
+	/**
+	 * Registers a listener that will be notified of the progress of all the
+	 * computations started by this calculator, including live updates.
+	 */
+	public void addJobListener( final FeatureComputationJob.Listener listener )
+	{
+		jobListeners.add( listener );
+	}
+
+	public void removeJobListener( final FeatureComputationJob.Listener listener )
+	{
+		jobListeners.remove( listener );
+	}
+
+	/**
+	 * Cancels all the computations currently running.
+	 */
+	public void cancelAll()
+	{
+		for ( final FeatureComputationJob job : runningJobs )
+			job.cancel();
+	}
+
+	/**
+	 * Cancels the running computations and stops the threads of this
+	 * calculator. It cannot be used afterwards.
+	 */
+	public void quit()
+	{
+		cancelAll();
+		dispatcher.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	private FeatureComputationJob computeSpotFeatures( final Iterable< Spot > toCompute, final List< SpotAnalyzerFactoryBase< ? > > saf, final String jobName )
 	{
-		// We always operate on the lowest resolution level.
-		final int level = 0;
-		final List< SpotAnalyzerFactoryBase< ? > > saf = settings.getSpotAnalyzerFactories();
 		final List< SourceAndConverter< ? > > sources = settings.getSources();
 
 		// Sort spots by frames.
 		final SpotCollection sc = SpotCollection.fromCollection( toCompute );
 
+		// One item per spot and per source.
+		final FeatureComputationJob job = new FeatureComputationJob( jobName, "spots", saf.isEmpty() ? 0 : ( long ) sc.getNSpots( false ) * sources.size() );
+		for ( final FeatureComputationJob.Listener listener : jobListeners )
+			job.addListener( listener );
+		if ( saf.isEmpty() )
+		{
+			job.finish();
+			return job;
+		}
+		runningJobs.add( job );
+
+		// One batch per frame, source and resolution level.
+		final List< Batch > batches = new ArrayList<>();
 		final NavigableSet< Integer > frames = sc.keySet();
 		for ( final Integer iframe : frames )
 		{
 			final int frame = iframe.intValue();
+			final List< Spot > spots = new ArrayList<>( sc.getNSpots( frame, false ) );
+			for ( final Spot spot : sc.iterable( frame, false ) )
+				spots.add( spot );
+			if ( spots.isEmpty() )
+				continue;
 
 			// Loop over each setup in this frame.
 			for ( int c = 0; c < sources.size(); c++ )
 			{
-				final int channel = c;
-
-				// The image for this setup, this frame (so 3D at max).
-				final SourceAndConverter< ? > sourceAnConverter = sources.get( c );
-				final Source< ? > source = sourceAnConverter.getSpimSource();
-
-				// The transform for this setup, this frame.
-				final AffineTransform3D sourceToGlobal = new AffineTransform3D();
-				source.getSourceTransform( frame, level, sourceToGlobal );
-
-				// The image.
-				@SuppressWarnings( "rawtypes" )
-				final RandomAccessibleInterval rai = source.getSource( frame, level );
-				final AxisType[] axes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
-				final double scaleX = Affine3DHelpers.extractScale( sourceToGlobal, 0 ) ;
-				final double scaleY = Affine3DHelpers.extractScale( sourceToGlobal, 1 ) ;
-				final double scaleZ = Affine3DHelpers.extractScale( sourceToGlobal, 2 ) ;
-				final double[] cal = new double[] {
-						1.,
-						scaleY / scaleX,
-						scaleZ / scaleX
-				};
-				final String[] units = new String[] { "globalpix", "globalpix", "globalpix" };
-				@SuppressWarnings( "unchecked" )
-				final ImgPlus< ? > imgPlus = new ImgPlus<>(
-						ImgView.wrap( rai ),
-						source.getName() + "C" + c + "_T" + frame,
-						axes,
-						cal,
-						units );
-
-				final List< Future< ? > > tasks = new ArrayList<>( sc.getNSpots( frame, false ) );
-				for ( final Spot spot : sc.iterable( frame, false ) )
+				final Source< ? > source = sources.get( c ).getSpimSource();
+				if ( minPixelsAcrossDiameter <= 0. || source.getNumMipmapLevels() == 1 )
 				{
-					// Transform spot coordinates.
-					final TransformedSpot transformedSpot = TransformedSpot.wrap( spot, sourceToGlobal, cal );
+					// We operate on the full resolution level.
+					batches.add( new Batch( spots, source, frame, 0, c ) );
+					continue;
+				}
+
+				// Dispatch spots to the level they are computed on.
+				final double[] scales = getLargestScales( source, frame );
+				final List< List< Spot > > spotsPerLevel = new ArrayList<>( scales.length );
+				for ( int level = 0; level < scales.length; level++ )
+					spotsPerLevel.add( new ArrayList<>() );
+				for ( final Spot spot : spots )
+					spotsPerLevel.get( getLevel( spot, scales ) ).add( spot );
 
-					// Execute update.
-					final Future< ? > task = executor.submit( () -> {
-						try
+				for ( int level = 0; level < scales.length; level++ )
+					if ( !spotsPerLevel.get( level ).isEmpty() )
+						batches.add( new Batch( spotsPerLevel.get( level ), source, frame, level, c ) );
+			}
+		}
+
+		final List< Future< ? > > tasks = new ArrayList<>();
+		try
+		{
+			/*
+			 * The analyzers of a batch only start once its image blocks are
+			 * loaded, so that they do not race the prefetch for the same
+			 * cells. The blocks of the next batch are loaded meanwhile.
+			 */
+			List< Future< ? > > nextPrefetch = batches.isEmpty() ? Collections.emptyList() : prefetch( batches.get( 0 ) );
+			for ( int i = 0; i < batches.size(); i++ )
+			{
+				final List< Future< ? > > currentPrefetch = nextPrefetch;
+				nextPrefetch = i + 1 < batches.size() ? prefetch( batches.get( i + 1 ) ) : Collections.emptyList();
+				for ( final Future< ? > task : currentPrefetch )
+				{
+					try
+					{
+						task.get();
+					}
+					catch ( final ExecutionException e )
+					{
+						// The analyzers will load the blocks themselves.
+						job.error( e.getCause() );
+					}
+				}
+				if ( job.isCancelled() )
+					break;
+				submit( batches.get( i ), saf, job, tasks );
+			}
+
+			// Wait for all frames and setups to be done.
+			for ( final Future< ? > task : tasks )
+				task.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			job.cancel();
+			job.error( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			job.error( e.getCause() );
+		}
+		finally
+		{
+			runningJobs.remove( job );
+			job.finish();
+		}
+		return job;
+	}
+
+	/**
+	 * Submits the loading of the image blocks covering the spots of the
+	 * specified batch, if prefetching is on.
+	 */
+	private List< Future< ? > > prefetch( final Batch batch )
+	{
+		if ( !prefetch )
+			return Collections.emptyList();
+		return CellPrefetcher.prefetch( batch.rai, getBoundingBoxes( batch.spots, batch.sourceToGlobal ), executor, numThreads );
+	}
+
+	/**
+	 * Submits the computation of the features of the spots of the specified
+	 * batch, in chunks.
+	 */
+	private void submit(
+			final Batch batch,
+			final List< SpotAnalyzerFactoryBase< ? > > saf,
+			final FeatureComputationJob job,
+			final List< Future< ? > > tasks )
+	{
+		final List< Spot > spots = batch.spots;
+		final Source< ? > source = batch.source;
+		final int frame = batch.frame;
+		final int level = batch.level;
+		final int channel = batch.channel;
+		final AffineTransform3D sourceToGlobal = batch.sourceToGlobal;
+		final int nSpots = spots.size();
+
+		// The image (so 3D at max).
+		@SuppressWarnings( "rawtypes" )
+		final RandomAccessibleInterval rai = batch.rai;
+		final AxisType[] axes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		final double scaleX = Affine3DHelpers.extractScale( sourceToGlobal, 0 ) ;
+		final double scaleY = Affine3DHelpers.extractScale( sourceToGlobal, 1 ) ;
+		final double scaleZ = Affine3DHelpers.extractScale( sourceToGlobal, 2 ) ;
+		final double[] cal = new double[] {
+				1.,
+				scaleY / scaleX,
+				scaleZ / scaleX
+		};
+		final String[] units = new String[] { "globalpix", "globalpix", "globalpix" };
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< ? > imgPlus = new ImgPlus<>(
+				ImgView.wrap( rai ),
+				source.getName() + "C" + channel + "_T" + frame + "_L" + level,
+				axes,
+				cal,
+				units );
+
+		// One analyzer per factory for this setup, this frame, this level.
+		final List< SpotAnalyzer< ? > > analyzers = createAnalyzers( saf, imgPlus, channel );
+
+		/*
+		 * On a down-sampled level, a spot covers fewer voxels, so summed
+		 * intensities must be scaled by the voxel volume ratio to stay
+		 * comparable with the full resolution level.
+		 */
+		final double volumeRatio = batch.volumeRatio;
+		final String totalIntensityKey = ( level > 0 && saf.stream().anyMatch( f -> SpotIntensityMultiCAnalyzerFactory.KEY.equals( f.getKey() ) ) )
+				? SpotIntensityMultiCAnalyzerFactory.makeFeatureKey( SpotIntensityMultiCAnalyzerFactory.TOTAL_INTENSITY, channel )
+				: null;
+
+		// Execute update over chunks of spots.
+		final int chunkSize = Math.max( MIN_CHUNK_SIZE, ( nSpots + numThreads - 1 ) / numThreads );
+		for ( int from = 0; from < nSpots; from += chunkSize )
+		{
+			final List< Spot > chunk = spots.subList( from, Math.min( nSpots, from + chunkSize ) );
+			final Future< ? > task = executor.submit( () -> {
+				if ( job.isCancelled() )
+					return;
+				try
+				{
+					// Transform spot coordinates, through a reused view if possible.
+					final Iterable< Spot > reusedViews = TransformedSpotView.iterable( chunk, sourceToGlobal, cal );
+					List< Spot > distinctViews = null;
+
+					for ( int i = 0; i < analyzers.size(); i++ )
+					{
+						final long start = System.nanoTime();
+						if ( VIEW_REUSING_ANALYZERS.contains( saf.get( i ).getKey() ) )
 						{
-							update( transformedSpot, saf, imgPlus, channel );
+							analyzers.get( i ).process( reusedViews );
 						}
-						catch ( final Exception e )
+						else
 						{
-							e.printStackTrace();
+							if ( null == distinctViews )
+								distinctViews = TransformedSpotView.wrapAll( chunk, sourceToGlobal, cal );
+							analyzers.get( i ).process( distinctViews );
 						}
-					} );
-					tasks.add( task );
-				}
-				// Force computation before we move to next setup.
-				try
-				{
-					for ( final Future< ? > task : tasks )
-						task.get();
+						job.addTime( saf.get( i ).getKey(), System.nanoTime() - start );
+					}
+
+					if ( null != totalIntensityKey )
+					{
+						for ( final Spot spot : chunk )
+						{
+							final Double total = spot.getFeature( totalIntensityKey );
+							if ( null != total )
+								spot.putFeature( totalIntensityKey, total.doubleValue() * volumeRatio );
+						}
+					}
 				}
-				catch ( InterruptedException | ExecutionException e )
+				catch ( final Exception e )
 				{
-					e.printStackTrace();
+					job.error( e );
 				}
+				job.processed( chunk.size() );
+			} );
+			tasks.add( task );
+		}
+	}
+
+	/**
+	 * Returns the bounding box of each of the specified spots, in pixel
+	 * coordinates of the source image with the specified transform.
+	 */
+	private static List< Interval > getBoundingBoxes( final List< Spot > spots, final AffineTransform3D sourceToGlobal )
+	{
+		final double[] scales = new double[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			scales[ d ] = Affine3DHelpers.extractScale( sourceToGlobal, d );
+
+		final List< Interval > boxes = new ArrayList<>( spots.size() );
+		final double[] pos = new double[ 3 ];
+		for ( final Spot spot : spots )
+		{
+			spot.localize( pos );
+			sourceToGlobal.applyInverse( pos, pos );
+			final double radius = spot.getFeature( Spot.RADIUS ).doubleValue();
+			final long[] min = new long[ 3 ];
+			final long[] max = new long[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+			{
+				final double r = radius / scales[ d ];
+				min[ d ] = ( long ) Math.floor( pos[ d ] - r );
+				max[ d ] = ( long ) Math.ceil( pos[ d ] + r );
 			}
+			boxes.add( new FinalInterval( min, max ) );
 		}
+		return boxes;
+	}
+
+	/**
+	 * Returns, for each resolution level of the source, the largest pixel size
+	 * over all axes, in global units.
+	 */
+	private static double[] getLargestScales( final Source< ? > source, final int frame )
+	{
+		final double[] scales = new double[ source.getNumMipmapLevels() ];
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		for ( int level = 0; level < scales.length; level++ )
+		{
+			source.getSourceTransform( frame, level, sourceToGlobal );
+			double scale = Affine3DHelpers.extractScale( sourceToGlobal, 0 );
+			for ( int axis = 1; axis < sourceToGlobal.numDimensions(); axis++ )
+				scale = Math.max( scale, Affine3DHelpers.extractScale( sourceToGlobal, axis ) );
+			scales[ level ] = scale;
+		}
+		return scales;
+	}
+
+	/**
+	 * Returns the coarsest level at which the spot diameter still spans at
+	 * least {@link #minPixelsAcrossDiameter} pixels along all axes, or 0 if
+	 * there is none.
+	 */
+	private int getLevel( final Spot spot, final double[] scales )
+	{
+		final double diameter = 2. * spot.getFeature( Spot.RADIUS ).doubleValue();
+		int level = 0;
+		while ( level < scales.length - 1 && diameter / scales[ level + 1 ] >= minPixelsAcrossDiameter )
+			level++;
+		return level;
+	}
+
+	/**
+	 * Sets the minimal number of pixels the diameter of a spot must span for
+	 * its features to be computed on a down-sampled resolution level. Each
+	 * spot is processed on the coarsest level that satisfies this constraint
+	 * along all axes. This can reduce I/O and computation by orders of
+	 * magnitude for large cells.
+	 * <p>
+	 * On a coarser level, a spot covers fewer voxels, each the average of
+	 * several full resolution voxels. Summed intensities would therefore
+	 * shrink by the down-sampling factor: the total intensity features are
+	 * rescaled by the ratio of the voxel volumes of the level and of the full
+	 * resolution level, so that they stay comparable across levels. Mean,
+	 * median, min, max and standard deviation of intensities are not
+	 * rescaled, but are computed over averaged voxels, which smooths min, max
+	 * and standard deviation.
+	 *
+	 * @param minPixelsAcrossDiameter
+	 *            the minimal number of pixels across a spot diameter. If 0 or
+	 *            less, features are always computed on the full resolution
+	 *            level, which is the default.
+	 */
+	public void setMinPixelsAcrossDiameter( final double minPixelsAcrossDiameter )
+	{
+		this.minPixelsAcrossDiameter = minPixelsAcrossDiameter;
+	}
+
+	/**
+	 * Returns the minimal number of pixels the diameter of a spot must span
+	 * for its features to be computed on a down-sampled resolution level.
+	 *
+	 * @see #setMinPixelsAcrossDiameter(double)
+	 */
+	public double getMinPixelsAcrossDiameter()
+	{
+		return minPixelsAcrossDiameter;
+	}
+
+	/**
+	 * Sets whether the image blocks covering the spots of each frame and
+	 * source are loaded in parallel before the analyzers run. This is on by
+	 * default, and makes computation on a cold cache much faster.
+	 */
+	public void setPrefetch( final boolean prefetch )
+	{
+		this.prefetch = prefetch;
+	}
+
+	public boolean isPrefetch()
+	{
+		return prefetch;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
 
+	@Override
+	public void setNumThreads()
+	{
+		setNumThreads( Runtime.getRuntime().availableProcessors() );
 	}
 
-	private static final void update( final Spot spot, final List< SpotAnalyzerFactoryBase< ? > > analyzerFactories, final ImgPlus< ? > img, final int channel )
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		final int n = Math.max( 1, numThreads );
+		synchronized ( executor )
+		{
+			// Keep core size <= max size at all times.
+			if ( n > executor.getMaximumPoolSize() )
+			{
+				executor.setMaximumPoolSize( n );
+				executor.setCorePoolSize( n );
+			}
+			else
+			{
+				executor.setCorePoolSize( n );
+				executor.setMaximumPoolSize( n );
+			}
+			this.numThreads = n;
+		}
+	}
+
+	/**
+	 * Creates one analyzer per factory for the specified single time-point
+	 * image. Spot analyzers do not keep state between spots, so the same
+	 * instances are shared by the threads processing the different chunks of
+	 * spots of this image.
+	 */
+	private static final List< SpotAnalyzer< ? > > createAnalyzers( final List< SpotAnalyzerFactoryBase< ? > > analyzerFactories, final ImgPlus< ? > img, final int channel )
 	{
 		/*
 		 * We expect to receive a single time-point image, so we point the
@@ -173,7 +787,7 @@ public class MamutSpotFeatureCalculator
 		 */
 		final int frame = 0;
 
-		// Process all analyzers.
+		final List< SpotAnalyzer< ? > > analyzers = new ArrayList<>( analyzerFactories.size() );
 		for ( @SuppressWarnings( "rawtypes" )
 		final SpotAnalyzerFactoryBase factory : analyzerFactories )
 		{
@@ -184,7 +798,70 @@ public class MamutSpotFeatureCalculator
 			if ( analyzer instanceof MultiThreaded )
 				( ( MultiThreaded ) analyzer ).setNumThreads( 1 );
 
-			analyzer.process( Collections.singletonList( spot ) );
+			analyzers.add( analyzer );
+		}
+		return analyzers;
+	}
+
+	/**
+	 * The spots of a frame, processed over a source at a resolution level.
+	 */
+	private static final class Batch
+	{
+
+		private final List< Spot > spots;
+
+		private final Source< ? > source;
+
+		private final int frame;
+
+		private final int level;
+
+		private final int channel;
+
+		private final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+
+		private final RandomAccessibleInterval< ? > rai;
+
+		/** Voxel volume at this level over voxel volume at level 0. */
+		private final double volumeRatio;
+
+		public Batch( final List< Spot > spots, final Source< ? > source, final int frame, final int level, final int channel )
+		{
+			this.spots = spots;
+			this.source = source;
+			this.frame = frame;
+			this.level = level;
+			this.channel = channel;
+			source.getSourceTransform( frame, level, sourceToGlobal );
+			this.rai = source.getSource( frame, level );
+			final AffineTransform3D fullResToGlobal = new AffineTransform3D();
+			source.getSourceTransform( frame, 0, fullResToGlobal );
+			double ratio = 1.;
+			for ( int d = 0; d < 3; d++ )
+				ratio *= Affine3DHelpers.extractScale( sourceToGlobal, d ) / Affine3DHelpers.extractScale( fullResToGlobal, d );
+			this.volumeRatio = ratio;
+		}
+	}
+
+	private static final class NamedThreadFactory implements ThreadFactory
+	{
+
+		private final String prefix;
+
+		private final AtomicInteger count = new AtomicInteger( 0 );
+
+		public NamedThreadFactory( final String prefix )
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread( final Runnable r )
+		{
+			final Thread thread = new Thread( r, prefix + count.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
 		}
 	}
 }
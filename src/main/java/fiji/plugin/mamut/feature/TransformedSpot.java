@@ -34,7 +34,10 @@ import net.imglib2.realtransform.AffineTransform3D;
  * <p>
  * 
  * @author Jean-Yves Tinevez
+ * @deprecated allocates a spot and consumes a spot ID per spot and per
+ *             source. Use {@link TransformedSpotView} instead.
  */
+@Deprecated
 public class TransformedSpot extends Spot
 {
 	// TODO If only Spot was an interface...
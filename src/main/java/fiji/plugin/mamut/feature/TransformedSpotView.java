@@ -0,0 +1,301 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bdv.util.Affine3DHelpers;
+import fiji.plugin.trackmate.Spot;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * A reusable view on a spot, that exposes coordinates and radius calculated
+ * from a transform, but has still the same features. Made for bulk feature
+ * computation.
+ * <p>
+ * A single view is pointed in turn to each spot of a batch. Position and
+ * radius are stored in primitive fields, feature keys are dispatched first by
+ * identity, and creating a view does not consume a spot ID. The view takes the
+ * ID, hash code and equality of the spot it currently wraps, and its features
+ * map shows the transformed position and radius.
+ * <p>
+ * Because its identity changes with each spot, a reused view, from
+ * {@link #iterable(List, AffineTransform3D, double[])}, must only be passed to
+ * analyzers that process each spot on its own and do not keep a reference to
+ * it, for instance as a map key. Other analyzers must be given one view per
+ * spot, from {@link #wrapAll(List, AffineTransform3D, double[])}.
+ */
+public final class TransformedSpotView extends Spot
+{
+
+	private final AffineTransform3D transform;
+
+	private final double[] cal;
+
+	private final double radiusScale;
+
+	private final double[] pos = new double[ 3 ];
+
+	private double radius;
+
+	private Spot wrapped;
+
+	private final Map< String, Double > features = new FeatureMap();
+
+	/**
+	 * Creates a view for the specified transform and calibration.
+	 *
+	 * @param transform
+	 *            the source to global transform.
+	 * @param cal
+	 *            the physical calibration, used to scale the pixel coordinates
+	 *            returned by the inverse transform in physical coordinates.
+	 */
+	public TransformedSpotView( final AffineTransform3D transform, final double[] cal )
+	{
+		// Does not increment the spot ID counter.
+		super( -1 );
+		this.transform = transform;
+		this.cal = cal;
+		this.radiusScale = Affine3DHelpers.extractScale( transform, 0 );
+	}
+
+	/**
+	 * Points this view to the specified spot.
+	 *
+	 * @return this view.
+	 */
+	public TransformedSpotView wrap( final Spot spot )
+	{
+		this.wrapped = spot;
+		spot.localize( pos );
+		transform.applyInverse( pos, pos );
+		for ( int d = 0; d < 3; d++ )
+			pos[ d ] *= cal[ d ];
+		this.radius = spot.getFeature( Spot.RADIUS ).doubleValue() / radiusScale;
+		return this;
+	}
+
+	/**
+	 * Returns an iterable over views of the specified spots. Each iterator
+	 * uses a single view, pointed in turn to each spot.
+	 */
+	public static Iterable< Spot > iterable( final List< Spot > spots, final AffineTransform3D transform, final double[] cal )
+	{
+		return () -> new Iterator< Spot >()
+		{
+			private final TransformedSpotView view = new TransformedSpotView( transform, cal );
+
+			private int index = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return index < spots.size();
+			}
+
+			@Override
+			public Spot next()
+			{
+				return view.wrap( spots.get( index++ ) );
+			}
+		};
+	}
+
+	/**
+	 * Returns a new view for each of the specified spots. To use with
+	 * analyzers that may keep references to the spots they process.
+	 */
+	public static List< Spot > wrapAll( final List< Spot > spots, final AffineTransform3D transform, final double[] cal )
+	{
+		final List< Spot > views = new ArrayList<>( spots.size() );
+		for ( final Spot spot : spots )
+			views.add( new TransformedSpotView( transform, cal ).wrap( spot ) );
+		return views;
+	}
+
+	@Override
+	public int ID()
+	{
+		return wrapped.ID();
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return wrapped.hashCode();
+	}
+
+	@Override
+	public boolean equals( final Object other )
+	{
+		if ( other instanceof TransformedSpotView )
+			return wrapped.equals( ( ( TransformedSpotView ) other ).wrapped );
+		return wrapped.equals( other );
+	}
+
+	@Override
+	public double getDoublePosition( final int d )
+	{
+		return pos[ d ];
+	}
+
+	@Override
+	public float getFloatPosition( final int d )
+	{
+		return ( float ) pos[ d ];
+	}
+
+	@Override
+	public void localize( final double[] position )
+	{
+		position[ 0 ] = pos[ 0 ];
+		position[ 1 ] = pos[ 1 ];
+		position[ 2 ] = pos[ 2 ];
+	}
+
+	@Override
+	public Map< String, Double > getFeatures()
+	{
+		return features;
+	}
+
+	@Override
+	public Double getFeature( final String feature )
+	{
+		final int index = transformedIndex( feature );
+		if ( index < 0 )
+			return wrapped.getFeature( feature );
+		return Double.valueOf( index < 3 ? pos[ index ] : radius );
+	}
+
+	@Override
+	public void putFeature( final String feature, final Double value )
+	{
+		final int index = transformedIndex( feature );
+		if ( index < 0 )
+			wrapped.putFeature( feature, value );
+		else if ( index < 3 )
+			pos[ index ] = value.doubleValue();
+		else
+			radius = value.doubleValue();
+	}
+
+	/**
+	 * Returns 0 to 2 for the position features, 3 for the radius, and -1 for
+	 * features read from the wrapped spot. Feature keys are almost always the
+	 * {@link Spot} constants, so they are first compared by identity.
+	 */
+	private static int transformedIndex( final String feature )
+	{
+		if ( feature == POSITION_X )
+			return 0;
+		if ( feature == POSITION_Y )
+			return 1;
+		if ( feature == POSITION_Z )
+			return 2;
+		if ( feature == RADIUS )
+			return 3;
+
+		switch ( feature )
+		{
+		case POSITION_X:
+			return 0;
+		case POSITION_Y:
+			return 1;
+		case POSITION_Z:
+			return 2;
+		case RADIUS:
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * The features of the wrapped spot, with the transformed position and
+	 * radius. Writes go through {@link #putFeature(String, Double)}.
+	 */
+	private final class FeatureMap extends AbstractMap< String, Double >
+	{
+
+		@Override
+		public Double get( final Object key )
+		{
+			return ( key instanceof String ) ? getFeature( ( String ) key ) : null;
+		}
+
+		@Override
+		public boolean containsKey( final Object key )
+		{
+			return wrapped.getFeatures().containsKey( key );
+		}
+
+		@Override
+		public Double put( final String key, final Double value )
+		{
+			final Double previous = getFeature( key );
+			putFeature( key, value );
+			return previous;
+		}
+
+		@Override
+		public Set< Map.Entry< String, Double > > entrySet()
+		{
+			return new AbstractSet< Map.Entry< String, Double > >()
+			{
+				@Override
+				public int size()
+				{
+					return wrapped.getFeatures().size();
+				}
+
+				@Override
+				public Iterator< Map.Entry< String, Double > > iterator()
+				{
+					final Iterator< String > keys = wrapped.getFeatures().keySet().iterator();
+					return new Iterator< Map.Entry< String, Double > >()
+					{
+						@Override
+						public boolean hasNext()
+						{
+							return keys.hasNext();
+						}
+
+						@Override
+						public Map.Entry< String, Double > next()
+						{
+							final String key = keys.next();
+							return new AbstractMap.SimpleImmutableEntry<>( key, getFeature( key ) );
+						}
+					};
+				}
+			};
+		}
+	}
+}
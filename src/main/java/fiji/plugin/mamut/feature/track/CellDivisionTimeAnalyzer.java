@@ -25,18 +25,29 @@ import static fiji.plugin.mamut.feature.spot.CellDivisionTimeAnalyzerSpotFactory
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.ImageIcon;
 
+import org.jgrapht.graph.DefaultWeightedEdge;
 import org.scijava.plugin.Plugin;
 
 import fiji.plugin.trackmate.Dimension;
 import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.TrackModel;
 import fiji.plugin.trackmate.features.track.TrackAnalyzer;
@@ -75,6 +86,17 @@ public class CellDivisionTimeAnalyzer implements TrackAnalyzer
 
 	private static final String NAME = "Cell division rate analyzer";
 
+	/** Below this number of tracks, they are processed in the caller thread. */
+	private static final int MIN_PARALLEL_TRACKS = 16;
+
+	/**
+	 * Shared by all the instances, so that processing edits does not create
+	 * a new pool each time. Created on first use, bounded to the number of
+	 * cores, and its threads stop when idle. At most {@link #numThreads}
+	 * tasks are submitted per call.
+	 */
+	private static ThreadPoolExecutor executor;
+
 	static
 	{
 		FEATURES.add( DIVISION_TIME_MEAN );
@@ -95,6 +117,29 @@ public class CellDivisionTimeAnalyzer implements TrackAnalyzer
 
 	private long processingTime;
 
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** Spot &rarr; first spot of its branch, for the processed tracks. */
+	private final Map< Spot, Spot > branchStarts = new ConcurrentHashMap<>();
+
+	/**
+	 * First spot of a branch &rarr; branch duration, or NaN if the branch is
+	 * not closed by two divisions.
+	 */
+	private final Map< Spot, Double > branchDurations = new ConcurrentHashMap<>();
+
+	/**
+	 * First spot of a closed branch &rarr; ID of the track its duration is
+	 * counted in.
+	 */
+	private final Map< Spot, Integer > branchTracks = new ConcurrentHashMap<>();
+
+	/**
+	 * Track ID &rarr; running statistics of the durations of its closed
+	 * branches, updated as branches are cached and forgotten.
+	 */
+	private final Map< Integer, DurationStatistics > trackStatistics = new ConcurrentHashMap<>();
+
 	@Override
 	public String getKey()
 	{
@@ -152,114 +197,372 @@ public class CellDivisionTimeAnalyzer implements TrackAnalyzer
 	@Override
 	public int getNumThreads()
 	{
-		return 1;
+		return numThreads;
 	}
 
 	@Override
 	public void setNumThreads()
-	{}
+	{
+		setNumThreads( Runtime.getRuntime().availableProcessors() );
+	}
 
 	@Override
 	public void setNumThreads( final int numThreads )
-	{}
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
 
+	/**
+	 * Computes the division time features of the specified tracks, from a new
+	 * branch decomposition of each track. Large sets of tracks are processed in
+	 * parallel, small ones in the caller thread. The branch durations are cached, so that later edits can be processed
+	 * with {@link #process(ModelChangeEvent, Model)}.
+	 */
 	@Override
 	public void process( final Collection< Integer > trackIDs, final Model model )
 	{
 		final long start = System.currentTimeMillis();
-		final FeatureModel fm = model.getFeatureModel();
 		final TrackModel tm = model.getTrackModel();
+
+		final List< Integer > ids = new ArrayList<>( trackIDs );
+		if ( numThreads == 1 || ids.size() < MIN_PARALLEL_TRACKS )
+		{
+			process( ids, tm, model );
+			processingTime = System.currentTimeMillis() - start;
+			return;
+		}
+
+		final int nTasks = Math.min( numThreads, ids.size() );
+		final int tracksPerTask = ( ids.size() + nTasks - 1 ) / nTasks;
+		final List< Future< ? > > tasks = new ArrayList<>( nTasks );
+		for ( int from = 0; from < ids.size(); from += tracksPerTask )
+		{
+			final List< Integer > chunk = ids.subList( from, Math.min( ids.size(), from + tracksPerTask ) );
+			tasks.add( getExecutor().submit( () -> process( chunk, tm, model ) ) );
+		}
+		try
+		{
+			for ( final Future< ? > task : tasks )
+				task.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			model.getLogger().error( "Cell division time computation interrupted.\n" );
+		}
+		catch ( final ExecutionException e )
+		{
+			model.getLogger().error( "Problem computing cell division times:\n" + e.getCause() + '\n' );
+		}
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+	}
+
+	private void process( final List< Integer > trackIDs, final TrackModel tm, final Model model )
+	{
+		// The neighbor index caches lazily, so one per thread.
 		final TimeDirectedNeighborIndex neighborIndex = tm.getDirectedNeighborIndex();
+		for ( final Integer trackID : trackIDs )
+		{
+			decompose( trackID, tm, neighborIndex );
+			publishTrackStatistics( trackID, model );
+		}
+	}
+
+	/**
+	 * Updates the division time features of the tracks modified by the
+	 * specified event.
+	 * <p>
+	 * If the event only adds spots and links, or moves spots within their
+	 * frame, only the branches that contain or neighbor the spots it touches
+	 * are recomputed, using the cached decomposition of the rest of the
+	 * track. Otherwise, or if the track was never processed, the modified
+	 * tracks are fully recomputed.
+	 *
+	 * @param event
+	 *            a {@link ModelChangeEvent#MODEL_MODIFIED} event.
+	 * @param model
+	 *            the model the event was fired by.
+	 */
+	public void process( final ModelChangeEvent event, final Model model )
+	{
+		final Collection< Integer > trackIDs = event.getTrackUpdated();
+		if ( null == trackIDs || trackIDs.isEmpty() )
+			return;
+
+		final long start = System.currentTimeMillis();
+		final TrackModel tm = model.getTrackModel();
+
+		/*
+		 * Collect touched spots per track, and check whether the edit is
+		 * local.
+		 */
+
+		final Set< DefaultWeightedEdge > addedEdges = new HashSet<>();
+		final Map< Integer, Set< Spot > > touched = new HashMap<>();
+		boolean local = true;
+		for ( final DefaultWeightedEdge edge : event.getEdges() )
+		{
+			final int flag = event.getEdgeFlag( edge );
+			if ( flag == ModelChangeEvent.FLAG_EDGE_REMOVED )
+			{
+				local = false;
+				continue;
+			}
+			addedEdges.add( edge );
+			final Spot source = tm.getEdgeSource( edge );
+			final Integer trackID = tm.trackIDOf( source );
+			if ( null == trackID )
+				continue;
+			final Set< Spot > spots = touched.computeIfAbsent( trackID, k -> new HashSet<>() );
+			spots.add( source );
+			spots.add( tm.getEdgeTarget( edge ) );
+		}
+		for ( final Spot spot : event.getSpots() )
+		{
+			final int flag = event.getSpotFlag( spot );
+			if ( flag == ModelChangeEvent.FLAG_SPOT_REMOVED )
+			{
+				forget( spot );
+				local = false;
+				continue;
+			}
+			if ( flag == ModelChangeEvent.FLAG_SPOT_FRAME_CHANGED )
+				local = false;
+			final Integer trackID = tm.trackIDOf( spot );
+			if ( null != trackID )
+				touched.computeIfAbsent( trackID, k -> new HashSet<>() ).add( spot );
+		}
+
+		if ( !local )
+		{
+			process( trackIDs, model );
+			return;
+		}
 
+		final TimeDirectedNeighborIndex neighborIndex = tm.getDirectedNeighborIndex();
+		final List< Integer > toRecompute = new ArrayList<>();
 		for ( final Integer trackID : trackIDs )
 		{
-			// For running variance and mean
-			double sum = 0;
-			double mean = 0;
-			double M2 = 0;
-			double delta, delta_n;
-			double term1;
-			int n1;
-
-			// Others
-			double val;
-			int n = 0;
-
-			final TrackBranchDecomposition branchDecomposition = ConvexBranchesDecomposition.processTrack( trackID, tm, neighborIndex, false, false );
-			for ( final List< Spot > branch : branchDecomposition.branches )
+			final Set< Spot > spots = touched.getOrDefault( trackID, Collections.emptySet() );
+			if ( !isKnown( spots, trackID, tm, addedEdges ) )
 			{
-				final Spot first = branch.get( 0 );
-				final Spot last = branch.get( branch.size() - 1 );
-
-				if ( EXCLUDE_OPEN_BRANCHES )
-				{
-					// Check if this branch arose from a cell division
-					final Set< Spot > predecessors = neighborIndex.predecessorsOf( first );
-					if ( predecessors.size() == 0 )
-					{
-						continue;
-					}
-					final Spot predecessor = predecessors.iterator().next();
-					if ( neighborIndex.successorsOf( predecessor ).size() < 2 )
-					{
-						continue;
-					}
-
-					// Check if this branch ends by a cell division
-					if ( neighborIndex.successorsOf( last ).size() < 2 )
-					{
-						continue;
-					}
-				}
-
-				// Ok, incorporate its duration
-				val = last.diffTo( first, Spot.POSITION_T );
-
-				/*
-				 * Before we go on, we will add this value as a feature of all
-				 * the spots of this branch.
-				 */
-				for ( final Spot spot : branch )
-				{
-					spot.putFeature( CELL_DIVISION_TIME, Double.valueOf( val ) );
-				}
-
-				// For variance and mean
-				sum += val;
-
-				n1 = n;
-				n++;
-				delta = val - mean;
-				delta_n = delta / n;
-				term1 = delta * delta_n * n1;
-				mean = mean + delta_n;
-				M2 = M2 + term1;
+				toRecompute.add( trackID );
+				continue;
 			}
 
-			final double std;
-			if ( n < 2 )
+			// Recompute the branches that contain or neighbor touched spots.
+			final Set< Spot > done = new HashSet<>();
+			for ( final Spot spot : spots )
 			{
-				std = Double.NaN;
+				updateBranch( spot, trackID, neighborIndex, done );
+				for ( final Spot predecessor : neighborIndex.predecessorsOf( spot ) )
+					updateBranch( predecessor, trackID, neighborIndex, done );
+				for ( final Spot successor : neighborIndex.successorsOf( spot ) )
+					updateBranch( successor, trackID, neighborIndex, done );
 			}
-			else
+			publishTrackStatistics( trackID, model );
+		}
+
+		if ( !toRecompute.isEmpty() )
+			process( toRecompute, model );
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+	}
+
+	/**
+	 * Returns <code>true</code> if the branches of all the specified spots are
+	 * cached for the specified track, or if the spots are new, that is if all
+	 * their links were just added. Spots of a track that was merged into this
+	 * one are not known, so that the branches of the merged track are counted
+	 * again.
+	 */
+	private boolean isKnown( final Set< Spot > spots, final Integer trackID, final TrackModel tm, final Set< DefaultWeightedEdge > addedEdges )
+	{
+		for ( final Spot spot : spots )
+		{
+			final Spot first = branchStarts.get( spot );
+			if ( null != first )
 			{
-				std = Math.sqrt( M2 / ( n - 1 ) );
+				final Integer countedIn = branchTracks.get( first );
+				if ( null != countedIn && !countedIn.equals( trackID ) )
+					return false;
+				continue;
 			}
-			if ( n < 1 )
+			for ( final DefaultWeightedEdge edge : tm.edgesOf( spot ) )
+				if ( !addedEdges.contains( edge ) )
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decomposes the specified track in branches, and caches their duration.
+	 */
+	private void decompose( final Integer trackID, final TrackModel tm, final TimeDirectedNeighborIndex neighborIndex )
+	{
+		final Set< Spot > trackSpots = tm.trackSpots( trackID );
+		if ( null == trackSpots )
+			return;
+
+		for ( final Spot spot : trackSpots )
+			forget( spot );
+		// Start from exact sums rather than accumulate rounding errors.
+		trackStatistics.remove( trackID );
+
+		final TrackBranchDecomposition branchDecomposition = ConvexBranchesDecomposition.processTrack( trackID, tm, neighborIndex, false, false );
+		for ( final List< Spot > branch : branchDecomposition.branches )
+			cacheBranch( branch, trackID, neighborIndex );
+	}
+
+	/**
+	 * Recomputes the branch that contains the specified spot, if it was not
+	 * already done.
+	 */
+	private void updateBranch( final Spot spot, final Integer trackID, final TimeDirectedNeighborIndex neighborIndex, final Set< Spot > done )
+	{
+		if ( done.contains( spot ) )
+			return;
+
+		// Walk back to the start of the branch.
+		Spot first = spot;
+		while ( true )
+		{
+			final Set< Spot > predecessors = neighborIndex.predecessorsOf( first );
+			if ( predecessors.size() != 1 )
+				break;
+			final Spot predecessor = predecessors.iterator().next();
+			if ( neighborIndex.successorsOf( predecessor ).size() != 1 )
+				break;
+			first = predecessor;
+		}
+
+		// Walk forward to its end.
+		final List< Spot > branch = new ArrayList<>();
+		Spot current = first;
+		branch.add( current );
+		while ( true )
+		{
+			final Set< Spot > successors = neighborIndex.successorsOf( current );
+			if ( successors.size() != 1 )
+				break;
+			final Spot successor = successors.iterator().next();
+			if ( neighborIndex.predecessorsOf( successor ).size() != 1 )
+				break;
+			current = successor;
+			branch.add( current );
+		}
+
+		for ( final Spot s : branch )
+			forget( s );
+		done.addAll( branch );
+		cacheBranch( branch, trackID, neighborIndex );
+	}
+
+	/**
+	 * Computes the duration of the specified branch, writes it to its spots if
+	 * the branch is closed, caches it and counts it in the statistics of the
+	 * specified track.
+	 */
+	private void cacheBranch( final List< Spot > branch, final Integer trackID, final TimeDirectedNeighborIndex neighborIndex )
+	{
+		final Spot first = branch.get( 0 );
+		final Spot last = branch.get( branch.size() - 1 );
+		for ( final Spot spot : branch )
+			branchStarts.put( spot, first );
+
+		if ( EXCLUDE_OPEN_BRANCHES )
+		{
+			// Check if this branch arose from a cell division, and ends by one.
+			final Set< Spot > predecessors = neighborIndex.predecessorsOf( first );
+			if ( predecessors.size() == 0
+					|| neighborIndex.successorsOf( predecessors.iterator().next() ).size() < 2
+					|| neighborIndex.successorsOf( last ).size() < 2 )
 			{
-				mean = Double.NaN;
+				branchDurations.put( first, Double.valueOf( Double.NaN ) );
+				return;
 			}
-			else
+		}
+
+		// Ok, incorporate its duration
+		final Double val = Double.valueOf( last.diffTo( first, Spot.POSITION_T ) );
+
+		/*
+		 * Before we go on, we will add this value as a feature of all the
+		 * spots of this branch.
+		 */
+		for ( final Spot spot : branch )
+			spot.putFeature( CELL_DIVISION_TIME, val );
+
+		branchDurations.put( first, val );
+		branchTracks.put( first, trackID );
+		trackStatistics.computeIfAbsent( trackID, k -> new DurationStatistics() ).add( val.doubleValue() );
+	}
+
+	/**
+	 * Removes the specified spot from the branch cache, and the duration of
+	 * the branch it starts from the statistics of its track.
+	 */
+	private void forget( final Spot spot )
+	{
+		branchStarts.remove( spot );
+		final Double duration = branchDurations.remove( spot );
+		final Integer trackID = branchTracks.remove( spot );
+		if ( null == duration || null == trackID || Double.isNaN( duration.doubleValue() ) )
+			return;
+
+		final DurationStatistics statistics = trackStatistics.get( trackID );
+		if ( null != statistics && statistics.remove( duration.doubleValue() ) )
+			trackStatistics.remove( trackID, statistics );
+	}
+
+	private static synchronized ExecutorService getExecutor()
+	{
+		if ( null == executor )
+		{
+			final int nThreads = Runtime.getRuntime().availableProcessors();
+			executor = new ThreadPoolExecutor( nThreads, nThreads, 30l, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+				final Thread thread = new Thread( r, "MaMuT cell division time analyzer thread" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+			executor.allowCoreThreadTimeOut( true );
+		}
+		return executor;
+	}
+
+	/**
+	 * Writes the mean and std of the division time over the closed branches
+	 * of the specified track, from its running statistics. Does not depend on
+	 * the size of the track.
+	 */
+	private void publishTrackStatistics( final Integer trackID, final Model model )
+	{
+		final DurationStatistics statistics = trackStatistics.get( trackID );
+		final double mean;
+		final double std;
+		if ( null == statistics )
+		{
+			mean = Double.NaN;
+			std = Double.NaN;
+		}
+		else
+		{
+			synchronized ( statistics )
 			{
-				mean = sum / n;
+				mean = statistics.mean();
+				std = statistics.std();
 			}
+		}
 
+		final FeatureModel fm = model.getFeatureModel();
+		synchronized ( fm )
+		{
 			fm.putTrackFeature( trackID, DIVISION_TIME_MEAN, Double.valueOf( mean ) );
 			fm.putTrackFeature( trackID, DIVISION_TIME_STD, Double.valueOf( std ) );
 		}
-
-		final long end = System.currentTimeMillis();
-		processingTime = end - start;
 	}
 
 	@Override
@@ -280,4 +583,47 @@ public class CellDivisionTimeAnalyzer implements TrackAnalyzer
 		return false;
 	}
 
+	/**
+	 * Count, sum and sum of squares of the branch durations of a track, so
+	 * that a duration can be added or removed in constant time.
+	 */
+	private static final class DurationStatistics
+	{
+
+		private int n;
+
+		private double sum;
+
+		private double sumSq;
+
+		private synchronized void add( final double val )
+		{
+			n++;
+			sum += val;
+			sumSq += val * val;
+		}
+
+		/**
+		 * @return <code>true</code> if no duration is left.
+		 */
+		private synchronized boolean remove( final double val )
+		{
+			n--;
+			sum -= val;
+			sumSq -= val * val;
+			return n <= 0;
+		}
+
+		private double mean()
+		{
+			return n < 1 ? Double.NaN : sum / n;
+		}
+
+		private double std()
+		{
+			if ( n < 2 )
+				return Double.NaN;
+			return Math.sqrt( Math.max( 0., ( sumSq - sum * sum / n ) / ( n - 1 ) ) );
+		}
+	}
 }
@@ -0,0 +1,448 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.feature.track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.track.TrackBranchingAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+
+/**
+ * Keeps the decomposable track features of a model up to date from the
+ * changes made to the model, without rescanning whole tracks.
+ * <p>
+ * The features of the {@link TrackBranchingAnalyzer} and of the
+ * {@link TrackDurationAnalyzer} are counts, sums and extrema over the spots
+ * and links of a track. This class stores them as aggregates per track, and
+ * updates them from the spots and links added by each edit. When tracks are
+ * merged by a new link, their aggregates are merged. Only edits that remove
+ * spots or links, or that move a spot to another frame, trigger a rescan of
+ * the tracks they touch, since they can split tracks.
+ * <p>
+ * Tracks are scanned once, the first time they are edited. For a large
+ * lineage, adding a spot and linking it then costs the same whatever the size
+ * of the lineage.
+ */
+public class IncrementalTrackFeatureCalculator
+{
+
+	/**
+	 * Keys of the track analyzers whose features are computed by this class.
+	 */
+	public static final Set< String > ANALYZER_KEYS = Collections.unmodifiableSet( new HashSet<>( Arrays.asList(
+			TrackBranchingAnalyzer.KEY,
+			TrackDurationAnalyzer.KEY ) ) );
+
+	private final Model model;
+
+	/** Branching state and track of the spots of the scanned tracks. */
+	private final Map< Spot, SpotState > spotStates = new HashMap<>();
+
+	/** Aggregates of the scanned tracks, by track ID. */
+	private final Map< Integer, TrackAggregate > aggregates = new HashMap<>();
+
+	/**
+	 * Track IDs that disappeared when their track was merged in another one
+	 * &rarr; ID of the track they were merged in.
+	 */
+	private final Map< Integer, Integer > aliases = new HashMap<>();
+
+	public IncrementalTrackFeatureCalculator( final Model model )
+	{
+		this.model = model;
+	}
+
+	/**
+	 * Updates the track features of the tracks modified by the specified
+	 * event.
+	 *
+	 * @param event
+	 *            a {@link ModelChangeEvent#MODEL_MODIFIED} event.
+	 */
+	public void modelChanged( final ModelChangeEvent event )
+	{
+		final Set< Integer > updated = event.getTrackUpdated();
+		final TrackModel tm = model.getTrackModel();
+
+		/*
+		 * Find out whether this edit can be applied incrementally.
+		 */
+
+		boolean incremental = true;
+		for ( final Spot spot : event.getSpots() )
+		{
+			final int flag = event.getSpotFlag( spot );
+			if ( flag == ModelChangeEvent.FLAG_SPOT_REMOVED )
+			{
+				spotStates.remove( spot );
+				incremental = false;
+			}
+			else if ( flag == ModelChangeEvent.FLAG_SPOT_FRAME_CHANGED )
+			{
+				incremental = false;
+			}
+		}
+		final Set< DefaultWeightedEdge > addedEdges = new HashSet<>();
+		for ( final DefaultWeightedEdge edge : event.getEdges() )
+		{
+			final int flag = event.getEdgeFlag( edge );
+			if ( flag == ModelChangeEvent.FLAG_EDGE_REMOVED )
+				incremental = false;
+			else if ( flag == ModelChangeEvent.FLAG_EDGE_ADDED )
+				addedEdges.add( edge );
+		}
+
+		if ( null == updated || updated.isEmpty() )
+			return;
+
+		if ( !incremental )
+		{
+			for ( final Integer trackID : updated )
+				rescan( trackID );
+
+			// Forget tracks that disappeared.
+			aggregates.keySet().retainAll( tm.trackIDs( false ) );
+			writeFeatures( updated );
+			return;
+		}
+
+		/*
+		 * Group the added spots and links by the track they are now in.
+		 */
+
+		final Map< Integer, TrackDelta > deltas = new HashMap<>();
+		for ( final Spot spot : event.getSpots() )
+		{
+			if ( event.getSpotFlag( spot ) != ModelChangeEvent.FLAG_SPOT_ADDED )
+				continue;
+			final Integer trackID = tm.trackIDOf( spot );
+			if ( null == trackID )
+				continue;
+			deltas.computeIfAbsent( trackID, k -> new TrackDelta() ).spots.add( spot );
+		}
+		for ( final DefaultWeightedEdge edge : addedEdges )
+		{
+			final Spot source = tm.getEdgeSource( edge );
+			final Integer trackID = tm.trackIDOf( source );
+			if ( null == trackID )
+				continue;
+			final TrackDelta delta = deltas.computeIfAbsent( trackID, k -> new TrackDelta() );
+			delta.edges.add( edge );
+			delta.spots.add( source );
+			delta.spots.add( tm.getEdgeTarget( edge ) );
+		}
+
+		for ( final Integer trackID : updated )
+		{
+			final TrackDelta delta = deltas.get( trackID );
+			if ( null == delta )
+			{
+				// Spots moved within their frame. Nothing to aggregate.
+				if ( !aggregates.containsKey( trackID ) )
+					rescan( trackID );
+			}
+			else if ( !apply( trackID, delta, addedEdges ) )
+			{
+				rescan( trackID );
+			}
+		}
+		writeFeatures( updated );
+	}
+
+	/**
+	 * Applies the specified additions to the aggregate of the specified track.
+	 *
+	 * @return <code>false</code> if the track contains spots that were not
+	 *         scanned before, in which case it must be rescanned.
+	 */
+	private boolean apply( final Integer trackID, final TrackDelta delta, final Set< DefaultWeightedEdge > addedEdges )
+	{
+		final TrackModel tm = model.getTrackModel();
+
+		/*
+		 * Collect the aggregates of the tracks merged in this one, and the
+		 * spots new to it.
+		 */
+
+		final Set< Integer > oldTrackIDs = new HashSet<>();
+		final Set< Spot > newSpots = new HashSet<>();
+		for ( final Spot spot : delta.spots )
+		{
+			final SpotState state = spotStates.get( spot );
+			if ( null != state )
+			{
+				oldTrackIDs.add( resolve( state.trackID ) );
+				continue;
+			}
+
+			// A spot we never saw is new only if all its links are new.
+			for ( final DefaultWeightedEdge edge : tm.edgesOf( spot ) )
+				if ( !addedEdges.contains( edge ) )
+					return false;
+			newSpots.add( spot );
+		}
+		for ( final Integer oldTrackID : oldTrackIDs )
+			if ( !aggregates.containsKey( oldTrackID ) )
+				return false;
+
+		final TrackAggregate aggregate = new TrackAggregate();
+		for ( final Integer oldTrackID : oldTrackIDs )
+		{
+			aggregate.merge( aggregates.remove( oldTrackID ) );
+			if ( !oldTrackID.equals( trackID ) )
+				aliases.put( oldTrackID, trackID );
+		}
+		aliases.remove( trackID );
+
+		for ( final Spot spot : newSpots )
+		{
+			spotStates.put( spot, new SpotState( trackID ) );
+			aggregate.addSpot( spot );
+		}
+
+		for ( final DefaultWeightedEdge edge : delta.edges )
+			aggregate.addEdge( tm.getEdgeSource( edge ), tm.getEdgeTarget( edge ), spotStates );
+
+		aggregates.put( trackID, aggregate );
+		return true;
+	}
+
+	/**
+	 * Rebuilds the aggregate of the specified track from all its spots and
+	 * links.
+	 */
+	private void rescan( final Integer trackID )
+	{
+		final TrackModel tm = model.getTrackModel();
+		final Set< Spot > spots = tm.trackSpots( trackID );
+		if ( null == spots )
+		{
+			aggregates.remove( trackID );
+			return;
+		}
+
+		final TrackAggregate aggregate = new TrackAggregate();
+		for ( final Spot spot : spots )
+		{
+			spotStates.put( spot, new SpotState( trackID ) );
+			aggregate.addSpot( spot );
+		}
+		for ( final DefaultWeightedEdge edge : tm.trackEdges( trackID ) )
+			aggregate.addEdge( tm.getEdgeSource( edge ), tm.getEdgeTarget( edge ), spotStates );
+
+		aliases.remove( trackID );
+		aggregates.put( trackID, aggregate );
+	}
+
+	private Integer resolve( final Integer trackID )
+	{
+		Integer id = trackID;
+		Integer next;
+		while ( null != ( next = aliases.get( id ) ) )
+			id = next;
+
+		// Path compression.
+		if ( !id.equals( trackID ) )
+			aliases.put( trackID, id );
+		return id;
+	}
+
+	private void writeFeatures( final Collection< Integer > trackIDs )
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		for ( final Integer trackID : trackIDs )
+		{
+			final TrackAggregate a = aggregates.get( trackID );
+			if ( null == a )
+				continue;
+
+			fm.putTrackFeature( trackID, TrackBranchingAnalyzer.NUMBER_SPOTS, Double.valueOf( a.nSpots ) );
+			fm.putTrackFeature( trackID, TrackBranchingAnalyzer.NUMBER_GAPS, Double.valueOf( a.nGaps ) );
+			fm.putTrackFeature( trackID, TrackBranchingAnalyzer.LONGEST_GAP, Double.valueOf( a.longestGap ) );
+			fm.putTrackFeature( trackID, TrackBranchingAnalyzer.NUMBER_SPLITS, Double.valueOf( a.nSplits ) );
+			fm.putTrackFeature( trackID, TrackBranchingAnalyzer.NUMBER_MERGES, Double.valueOf( a.nMerges ) );
+			fm.putTrackFeature( trackID, TrackBranchingAnalyzer.NUMBER_COMPLEX, Double.valueOf( a.nComplex ) );
+
+			if ( null == a.start )
+				continue;
+			final double tStart = a.start.getFeature( Spot.POSITION_T ).doubleValue();
+			final double tStop = a.stop.getFeature( Spot.POSITION_T ).doubleValue();
+			fm.putTrackFeature( trackID, TrackDurationAnalyzer.TRACK_DURATION, Double.valueOf( tStop - tStart ) );
+			fm.putTrackFeature( trackID, TrackDurationAnalyzer.TRACK_START, Double.valueOf( tStart ) );
+			fm.putTrackFeature( trackID, TrackDurationAnalyzer.TRACK_STOP, Double.valueOf( tStop ) );
+			// Computed from the current positions, in case they were edited.
+			fm.putTrackFeature( trackID, TrackDurationAnalyzer.TRACK_DISPLACEMENT, Double.valueOf( Math.sqrt( a.start.squareDistanceTo( a.stop ) ) ) );
+		}
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The spots and links added to a track by an edit.
+	 */
+	private static final class TrackDelta
+	{
+		private final Set< Spot > spots = new HashSet<>();
+
+		private final List< DefaultWeightedEdge > edges = new ArrayList<>();
+	}
+
+	/**
+	 * The track a spot was last seen in, and its number of neighbors before
+	 * and after it in time.
+	 */
+	private static final class SpotState
+	{
+		private final Integer trackID;
+
+		private int nBefore;
+
+		private int nAfter;
+
+		public SpotState( final Integer trackID )
+		{
+			this.trackID = trackID;
+		}
+
+		/**
+		 * Returns 0 for a regular spot, 1 for a split, 2 for a merge and 3
+		 * for a complex spot.
+		 */
+		private int branching()
+		{
+			if ( nBefore > 1 && nAfter > 1 )
+				return 3;
+			if ( nBefore > 1 )
+				return 2;
+			if ( nAfter > 1 )
+				return 1;
+			return 0;
+		}
+	}
+
+	private static final class TrackAggregate
+	{
+		private int nSpots;
+
+		private int nGaps;
+
+		private int longestGap;
+
+		private int nSplits;
+
+		private int nMerges;
+
+		private int nComplex;
+
+		private Spot start;
+
+		private Spot stop;
+
+		private void merge( final TrackAggregate other )
+		{
+			nSpots += other.nSpots;
+			nGaps += other.nGaps;
+			longestGap = Math.max( longestGap, other.longestGap );
+			nSplits += other.nSplits;
+			nMerges += other.nMerges;
+			nComplex += other.nComplex;
+			if ( null != other.start )
+			{
+				updateExtrema( other.start );
+				updateExtrema( other.stop );
+			}
+		}
+
+		private void addSpot( final Spot spot )
+		{
+			nSpots++;
+			updateExtrema( spot );
+		}
+
+		private void updateExtrema( final Spot spot )
+		{
+			final double t = spot.getFeature( Spot.POSITION_T ).doubleValue();
+			if ( null == start || t < start.getFeature( Spot.POSITION_T ).doubleValue() )
+				start = spot;
+			if ( null == stop || t > stop.getFeature( Spot.POSITION_T ).doubleValue() )
+				stop = spot;
+		}
+
+		private void addEdge( final Spot source, final Spot target, final Map< Spot, SpotState > states )
+		{
+			final int frameGap = Math.abs( source.getFeature( Spot.FRAME ).intValue() - target.getFeature( Spot.FRAME ).intValue() );
+			if ( frameGap > 1 )
+			{
+				nGaps++;
+				longestGap = Math.max( longestGap, frameGap - 1 );
+			}
+
+			addNeighbor( states.get( source ), target.diffTo( source, Spot.POSITION_T ) < 0 );
+			addNeighbor( states.get( target ), source.diffTo( target, Spot.POSITION_T ) < 0 );
+		}
+
+		private void addNeighbor( final SpotState state, final boolean before )
+		{
+			count( state.branching(), -1 );
+			if ( before )
+				state.nBefore++;
+			else
+				state.nAfter++;
+			count( state.branching(), 1 );
+		}
+
+		private void count( final int branching, final int inc )
+		{
+			switch ( branching )
+			{
+			case 1:
+				nSplits += inc;
+				break;
+			case 2:
+				nMerges += inc;
+				break;
+			case 3:
+				nComplex += inc;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+}
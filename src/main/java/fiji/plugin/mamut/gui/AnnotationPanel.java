@@ -34,14 +34,19 @@ import java.awt.Insets;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.JTextPane;
@@ -55,6 +60,8 @@ import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
 
 import fiji.plugin.mamut.MaMuT;
+import fiji.plugin.mamut.detection.MultiSeedSemiAutoTracker.Direction;
+import fiji.plugin.mamut.feature.FeatureComputationJob;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.util.ModelTools;
 import ij.IJ;
@@ -84,6 +91,9 @@ public class AnnotationPanel extends JPanel
 		LINK_SPOTS_ICON = new ImageIcon( newimg );
 	}
 
+	/** Feature computations longer than this, in ms, are reported in the log. */
+	private static final long REPORT_THRESHOLD = 1000;
+
 	private final Logger logger;
 
 	private final JFormattedTextField ftfDistanceTolerance;
@@ -94,6 +104,28 @@ public class AnnotationPanel extends JPanel
 
 	private final JFormattedTextField ftfNFrames;
 
+	private final JFormattedTextField ftfMinPixels;
+
+	private final JCheckBox chckbxLazyFeatures;
+
+	private final JLabel lblFeatureStatus;
+
+	private final JProgressBar progressBarFeatures;
+
+	private final JButton buttonCancelFeatures;
+
+	/**
+	 * The feature computation displayed, and the one the cancel button
+	 * stops. The oldest running one. Accessed on the EDT.
+	 */
+	private FeatureComputationJob currentJob;
+
+	/**
+	 * The feature computations running, in the order they were first
+	 * reported. Accessed on the EDT.
+	 */
+	private final Set< FeatureComputationJob > runningJobs = new LinkedHashSet<>();
+
 	public AnnotationPanel( final MaMuT mamut )
 	{
 
@@ -122,7 +154,7 @@ public class AnnotationPanel extends JPanel
 
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWeights = new double[] { 1.0 };
-		gridBagLayout.rowWeights = new double[] { 0.0, 0.0, 0.0, 1.0 };
+		gridBagLayout.rowWeights = new double[] { 0.0, 0.0, 0.0, 1.0, 0.0, 0.0 };
 		setLayout( gridBagLayout );
 
 		/*
@@ -260,7 +292,7 @@ public class AnnotationPanel extends JPanel
 		panelSemiAutoParams.setBorder( new LineBorder( new Color( 252, 117, 0 ), 1, false ) );
 		final GridBagLayout gblPanelSemiAutoParams = new GridBagLayout();
 		gblPanelSemiAutoParams.columnWeights = new double[] { 0.0, 0.0, 1.0, Double.MIN_VALUE };
-		gblPanelSemiAutoParams.rowWeights = new double[] { 0.0, 0.0, 0.0, 0.0, 0.0, Double.MIN_VALUE };
+		gblPanelSemiAutoParams.rowWeights = new double[] { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, Double.MIN_VALUE };
 		panelSemiAutoParams.setLayout( gblPanelSemiAutoParams );
 
 		final GridBagConstraints gbcPanelSemiAutoParams = new GridBagConstraints();
@@ -376,6 +408,132 @@ public class AnnotationPanel extends JPanel
 		gbcFtfNFrames.gridy = 4;
 		panelSemiAutoParams.add( ftfNFrames, gbcFtfNFrames );
 
+		final JCheckBox chckbxConcurrent = new JCheckBox( "Track all selected spots at once", mamut.getGuimodel().concurrentSemiAutoTracking );
+		chckbxConcurrent.setToolTipText( "<html>If checked, all the selected spots are tracked <br>"
+				+ "concurrently, and conflicting detections are <br>"
+				+ "given to the closest track.</html>" );
+		chckbxConcurrent.setFont( SMALL_FONT );
+		chckbxConcurrent.addActionListener( e -> mamut.getGuimodel().concurrentSemiAutoTracking = chckbxConcurrent.isSelected() );
+		final GridBagConstraints gbcChckbxConcurrent = new GridBagConstraints();
+		gbcChckbxConcurrent.anchor = GridBagConstraints.WEST;
+		gbcChckbxConcurrent.insets = new Insets( 0, 5, 5, 5 );
+		gbcChckbxConcurrent.gridwidth = 3;
+		gbcChckbxConcurrent.gridx = 0;
+		gbcChckbxConcurrent.gridy = 5;
+		panelSemiAutoParams.add( chckbxConcurrent, gbcChckbxConcurrent );
+
+		final JLabel lblDirection = new JLabel( "Direction" );
+		lblDirection.setToolTipText( "<html>Whether to track spots forward in time, <br/>"
+				+ "backward to find their predecessors, or both.</html>" );
+		lblDirection.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblDirection = new GridBagConstraints();
+		gbcLblDirection.anchor = GridBagConstraints.WEST;
+		gbcLblDirection.insets = new Insets( 0, 5, 5, 5 );
+		gbcLblDirection.gridwidth = 2;
+		gbcLblDirection.gridx = 0;
+		gbcLblDirection.gridy = 6;
+		panelSemiAutoParams.add( lblDirection, gbcLblDirection );
+
+		final JComboBox< Direction > cmbboxDirection = new JComboBox<>( Direction.values() );
+		cmbboxDirection.setSelectedItem( mamut.getGuimodel().semiAutoTrackingDirection );
+		cmbboxDirection.setFont( SMALL_FONT );
+		cmbboxDirection.addActionListener( e -> mamut.getGuimodel().semiAutoTrackingDirection = ( Direction ) cmbboxDirection.getSelectedItem() );
+		final GridBagConstraints gbcCmbboxDirection = new GridBagConstraints();
+		gbcCmbboxDirection.insets = new Insets( 0, 0, 5, 0 );
+		gbcCmbboxDirection.gridx = 2;
+		gbcCmbboxDirection.gridy = 6;
+		panelSemiAutoParams.add( cmbboxDirection, gbcCmbboxDirection );
+
+		final JCheckBox chckbxMultiView = new JCheckBox( "Search all views", mamut.getGuimodel().multiViewSemiAutoTracking );
+		chckbxMultiView.setToolTipText( "<html>If checked, spots are searched in all the sources <br>"
+				+ "in parallel, and the one with the best quality is kept. <br>"
+				+ "Otherwise only the source of the current spot is searched.</html>" );
+		chckbxMultiView.setFont( SMALL_FONT );
+		chckbxMultiView.addActionListener( e -> mamut.getGuimodel().multiViewSemiAutoTracking = chckbxMultiView.isSelected() );
+		final GridBagConstraints gbcChckbxMultiView = new GridBagConstraints();
+		gbcChckbxMultiView.anchor = GridBagConstraints.WEST;
+		gbcChckbxMultiView.insets = new Insets( 0, 5, 5, 5 );
+		gbcChckbxMultiView.gridwidth = 3;
+		gbcChckbxMultiView.gridx = 0;
+		gbcChckbxMultiView.gridy = 7;
+		panelSemiAutoParams.add( chckbxMultiView, gbcChckbxMultiView );
+
+		/*
+		 * Feature settings panel.
+		 */
+
+		final JPanel panelFeatureSettings = new JPanel();
+		panelFeatureSettings.setBorder( new LineBorder( new Color( 252, 117, 0 ), 1, false ) );
+		final GridBagLayout gblPanelFeatureSettings = new GridBagLayout();
+		gblPanelFeatureSettings.columnWeights = new double[] { 0.0, 0.0, 1.0, Double.MIN_VALUE };
+		gblPanelFeatureSettings.rowWeights = new double[] { 0.0, 0.0, Double.MIN_VALUE };
+		panelFeatureSettings.setLayout( gblPanelFeatureSettings );
+
+		final GridBagConstraints gbcPanelFeatureSettings = new GridBagConstraints();
+		gbcPanelFeatureSettings.fill = GridBagConstraints.BOTH;
+		gbcPanelFeatureSettings.insets = new Insets( 0, 5, 5, 5 );
+		gbcPanelFeatureSettings.gridx = 0;
+		gbcPanelFeatureSettings.gridy = 5;
+		add( panelFeatureSettings, gbcPanelFeatureSettings );
+
+		final JLabel lblMinPixels = new JLabel( "Min. pixels across diameter" );
+		lblMinPixels.setToolTipText( "<html>Spot features are computed on the coarsest <br>"
+				+ "resolution level where the spot diameter still spans <br>"
+				+ "this number of pixels. Make it 0 to always use <br>"
+				+ "the full resolution. Total intensities are rescaled <br>"
+				+ "to the full resolution voxel size; other intensity <br>"
+				+ "features are computed on fewer, averaged voxels.</html>" );
+		lblMinPixels.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblMinPixels = new GridBagConstraints();
+		gbcLblMinPixels.anchor = GridBagConstraints.WEST;
+		gbcLblMinPixels.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblMinPixels.gridwidth = 2;
+		gbcLblMinPixels.gridx = 0;
+		gbcLblMinPixels.gridy = 0;
+		panelFeatureSettings.add( lblMinPixels, gbcLblMinPixels );
+
+		ftfMinPixels = new JFormattedTextField( Double.valueOf( mamut.getGuimodel().minPixelsAcrossDiameter ) );
+		ftfMinPixels.setMaximumSize( new Dimension( 160, 2147483647 ) );
+		ftfMinPixels.setColumns( 8 );
+		ftfMinPixels.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfMinPixels.setFont( SMALL_FONT );
+		ftfMinPixels.addActionListener( e -> mamut.setMinPixelsAcrossDiameter( ( ( Number ) ftfMinPixels.getValue() ).doubleValue() ) );
+		ftfMinPixels.addFocusListener( new FocusListener()
+		{
+			@Override
+			public void focusLost( final FocusEvent e )
+			{
+				final double minPixels = ( ( Number ) ftfMinPixels.getValue() ).doubleValue();
+				if ( minPixels != mamut.getGuimodel().minPixelsAcrossDiameter )
+					mamut.setMinPixelsAcrossDiameter( minPixels );
+			}
+
+			@Override
+			public void focusGained( final FocusEvent e )
+			{
+				fl.focusGained( e );
+			}
+		} );
+		final GridBagConstraints gbcFtfMinPixels = new GridBagConstraints();
+		gbcFtfMinPixels.insets = new Insets( 5, 0, 5, 0 );
+		gbcFtfMinPixels.gridx = 2;
+		gbcFtfMinPixels.gridy = 0;
+		panelFeatureSettings.add( ftfMinPixels, gbcFtfMinPixels );
+
+		chckbxLazyFeatures = new JCheckBox( "Compute intensity features on demand", mamut.getGuimodel().lazySpotFeatures );
+		chckbxLazyFeatures.setToolTipText( "<html>If checked, intensity and contrast features are <br>"
+				+ "not recomputed after every edit, but only when they <br>"
+				+ "are displayed or when the file is saved.</html>" );
+		chckbxLazyFeatures.setFont( SMALL_FONT );
+		chckbxLazyFeatures.addActionListener( e -> mamut.setLazyFeatures( chckbxLazyFeatures.isSelected() ) );
+		final GridBagConstraints gbcChckbxLazyFeatures = new GridBagConstraints();
+		gbcChckbxLazyFeatures.anchor = GridBagConstraints.WEST;
+		gbcChckbxLazyFeatures.insets = new Insets( 0, 5, 5, 5 );
+		gbcChckbxLazyFeatures.gridwidth = 3;
+		gbcChckbxLazyFeatures.gridx = 0;
+		gbcChckbxLazyFeatures.gridy = 1;
+		panelFeatureSettings.add( chckbxLazyFeatures, gbcChckbxLazyFeatures );
+
 		/*
 		 * Logger panel.
 		 */
@@ -396,6 +554,39 @@ public class AnnotationPanel extends JPanel
 		gbcScrollPane.gridy = 3;
 		add( scrollPane, gbcScrollPane );
 
+		/*
+		 * Feature computation panel.
+		 */
+
+		final JPanel featurePanel = new JPanel();
+		featurePanel.setLayout( new BoxLayout( featurePanel, BoxLayout.X_AXIS ) );
+		final GridBagConstraints gbcFeaturePanel = new GridBagConstraints();
+		gbcFeaturePanel.fill = GridBagConstraints.BOTH;
+		gbcFeaturePanel.insets = new Insets( 0, 5, 5, 5 );
+		gbcFeaturePanel.gridx = 0;
+		gbcFeaturePanel.gridy = 4;
+		add( featurePanel, gbcFeaturePanel );
+
+		lblFeatureStatus = new JLabel( " " );
+		lblFeatureStatus.setFont( SMALL_FONT );
+		featurePanel.add( lblFeatureStatus );
+		featurePanel.add( Box.createHorizontalGlue() );
+
+		progressBarFeatures = new JProgressBar( 0, 100 );
+		progressBarFeatures.setMaximumSize( new Dimension( 80, 16 ) );
+		progressBarFeatures.setVisible( false );
+		featurePanel.add( progressBarFeatures );
+
+		buttonCancelFeatures = new JButton( "Cancel" );
+		buttonCancelFeatures.setFont( SMALL_FONT );
+		buttonCancelFeatures.setEnabled( false );
+		buttonCancelFeatures.addActionListener( e -> {
+			final FeatureComputationJob job = currentJob;
+			if ( null != job )
+				job.cancel();
+		} );
+		featurePanel.add( buttonCancelFeatures );
+
 		logger = new Logger()
 		{
 
@@ -454,6 +645,65 @@ public class AnnotationPanel extends JPanel
 		return logger;
 	}
 
+	/**
+	 * Returns a listener that displays the progress of feature computations
+	 * on this panel, and logs a report of the long or failed ones. When
+	 * several computations run, for instance live updates during a full
+	 * recomputation, the oldest one is displayed until it ends.
+	 * 
+	 * @return a new listener.
+	 */
+	public FeatureComputationJob.Listener getJobListener()
+	{
+		return job -> {
+			final boolean done = job.isDone();
+			if ( done && ( job.getElapsedTime() > REPORT_THRESHOLD || !job.getErrors().isEmpty() ) )
+			{
+				if ( job.getErrors().isEmpty() )
+					logger.log( job.getReport() );
+				else
+					logger.error( job.getReport() );
+			}
+
+			final String status = job.getStatus();
+			final int progress = ( int ) ( 100 * job.getProgress() );
+			SwingUtilities.invokeLater( () -> {
+				if ( done )
+					runningJobs.remove( job );
+				else
+					runningJobs.add( job );
+
+				// Other jobs do not hide the one displayed.
+				if ( null != currentJob && job != currentJob )
+					return;
+
+				lblFeatureStatus.setText( status );
+				progressBarFeatures.setValue( progress );
+				currentJob = done ? null : job;
+				if ( done && !runningJobs.isEmpty() )
+				{
+					currentJob = runningJobs.iterator().next();
+					progressBarFeatures.setValue( ( int ) ( 100 * currentJob.getProgress() ) );
+				}
+				final boolean running = null != currentJob;
+				progressBarFeatures.setVisible( running );
+				buttonCancelFeatures.setEnabled( running );
+			} );
+		};
+	}
+
+	/**
+	 * Updates the feature settings fields from the specified GUI model, for
+	 * instance after the settings were loaded from a file.
+	 */
+	public void refreshFeatureSettings( final MamutGUIModel guiModel )
+	{
+		SwingUtilities.invokeLater( () -> {
+			ftfMinPixels.setValue( Double.valueOf( guiModel.minPixelsAcrossDiameter ) );
+			chckbxLazyFeatures.setSelected( guiModel.lazySpotFeatures );
+		} );
+	}
+
 	private void updateParamsFromTextFields( final MamutGUIModel guiModel )
 	{
 		guiModel.distanceTolerance = ( ( Number ) ftfDistanceTolerance.getValue() ).doubleValue();
@@ -24,6 +24,7 @@ package fiji.plugin.mamut.gui;
 import java.util.HashSet;
 import java.util.Set;
 
+import fiji.plugin.mamut.detection.MultiSeedSemiAutoTracker.Direction;
 import fiji.plugin.trackmate.visualization.TrackMateModelView;
 
 public class MamutGUIModel
@@ -51,6 +52,36 @@ public class MamutGUIModel
 	 */
 	public int timeStep = 5;
 
+	/**
+	 * If <code>true</code>, semi-automated tracking of several selected spots
+	 * tracks them all at once, on a shared thread pool.
+	 */
+	public boolean concurrentSemiAutoTracking = true;
+
+	/**
+	 * The direction in time semi-automated tracking extends tracks in.
+	 */
+	public Direction semiAutoTrackingDirection = Direction.FORWARD;
+
+	/**
+	 * If <code>true</code>, semi-automated tracking searches all the sources
+	 * for the next spot, and keeps the best one.
+	 */
+	public boolean multiViewSemiAutoTracking = false;
+
+	/**
+	 * The minimal number of pixels across a spot diameter for its features to
+	 * be computed on a down-sampled resolution level. 0 or less to always use
+	 * the full resolution level.
+	 */
+	public double minPixelsAcrossDiameter = 0.;
+
+	/**
+	 * If <code>true</code>, expensive spot features are only computed when
+	 * they are displayed or saved, instead of after every edit.
+	 */
+	public boolean lazySpotFeatures = false;
+
 	public final Set< TrackMateModelView > views = new HashSet<>();
 
 }
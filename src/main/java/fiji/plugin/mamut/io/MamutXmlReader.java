@@ -21,6 +21,8 @@
  */
 package fiji.plugin.mamut.io;
 
+import static fiji.plugin.mamut.io.MamutXmlWriter.LAZY_SPOT_FEATURES_ATTRIBUTE;
+import static fiji.plugin.mamut.io.MamutXmlWriter.MIN_PIXELS_ACROSS_DIAMETER_ATTRIBUTE;
 import static fiji.plugin.trackmate.io.IOUtils.readDoubleAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readIntAttribute;
 import static fiji.plugin.trackmate.io.TmXmlKeys.ANALYSER_ELEMENT_KEY;
@@ -473,6 +475,36 @@ public class MamutXmlReader extends TmXmlReader
 		}
 	}
 
+	/**
+	 * Restores the feature computation settings stored in the GUI state to
+	 * the specified MaMuT session. Settings missing from files saved by
+	 * previous versions are left to their default.
+	 */
+	public void readFeatureSettings( final MaMuT mamut )
+	{
+		final Element guiel = root.getChild( GUI_STATE_ELEMENT_KEY );
+		if ( null == guiel )
+			return;
+
+		final String minPixels = guiel.getAttributeValue( MIN_PIXELS_ACROSS_DIAMETER_ATTRIBUTE );
+		if ( null != minPixels )
+		{
+			try
+			{
+				mamut.setMinPixelsAcrossDiameter( Double.parseDouble( minPixels ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				logger.error( "Could not read attribute " + MIN_PIXELS_ACROSS_DIAMETER_ATTRIBUTE + ": " + minPixels + ".\n" );
+				ok = false;
+			}
+		}
+
+		final String lazy = guiel.getAttributeValue( LAZY_SPOT_FEATURES_ATTRIBUTE );
+		if ( null != lazy )
+			mamut.setLazyFeatures( Boolean.parseBoolean( lazy ) );
+	}
+
 	public void readBookmarks( final Bookmarks bookmarks )
 	{
 		final Element guiel = root.getChild( GUI_STATE_ELEMENT_KEY );
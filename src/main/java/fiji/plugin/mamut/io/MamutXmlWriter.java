@@ -51,6 +51,19 @@ import fiji.plugin.trackmate.visualization.trackscheme.TrackScheme;
 public class MamutXmlWriter extends TmXmlWriter
 {
 
+	/**
+	 * Attribute of the GUI state element that stores the minimal number of
+	 * pixels across a spot diameter to compute its features on a down-sampled
+	 * level.
+	 */
+	public static final String MIN_PIXELS_ACROSS_DIAMETER_ATTRIBUTE = "minPixelsAcrossDiameter";
+
+	/**
+	 * Attribute of the GUI state element that stores whether expensive spot
+	 * features are computed on demand.
+	 */
+	public static final String LAZY_SPOT_FEATURES_ATTRIBUTE = "lazySpotFeatures";
+
 	public MamutXmlWriter( final File file, final Logger logger )
 	{
 		super( file, logger );
@@ -108,6 +121,9 @@ public class MamutXmlWriter extends TmXmlWriter
 			final SetupAssignments setupAssignments, final Bookmarks bookmarks )
 	{
 		final Element guiel = new Element( GUI_STATE_ELEMENT_KEY );
+		// feature computation
+		guiel.setAttribute( MIN_PIXELS_ACROSS_DIAMETER_ATTRIBUTE, "" + guimodel.minPixelsAcrossDiameter );
+		guiel.setAttribute( LAZY_SPOT_FEATURES_ATTRIBUTE, "" + guimodel.lazySpotFeatures );
 		// views
 		for ( final TrackMateModelView view : guimodel.views )
 		{
@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Watches a TGMM output folder while TGMM is still running, and appends the
+ * frames it writes progressively to the model of a {@link TGMMImporter2}.
+ * <p>
+ * The folder is polled at a fixed period rather than listened to, because file
+ * system notifications are not delivered reliably on the network file systems
+ * TGMM usually writes to. Watching stops when the importer reports the import
+ * is complete, when an error occurs, or when no new frame appeared for the
+ * specified idle time.
+ * <p>
+ * The watcher thread is a daemon thread: it does not prevent the JVM from
+ * exiting. Headless callers should wait for it with
+ * {@link #awaitTermination()}.
+ */
+public class TGMMFolderWatcher
+{
+
+	/**
+	 * Interface for listeners that are notified when new frames have been
+	 * appended to the model.
+	 */
+	public interface NewFramesListener
+	{
+		/**
+		 * Called from the watcher thread after new frames have been appended
+		 * to the model.
+		 *
+		 * @param lastFrame
+		 *            the TGMM frame number of the last frame appended.
+		 * @param complete
+		 *            whether this was the last frame to import.
+		 */
+		public void newFramesImported( int lastFrame, boolean complete );
+
+		/**
+		 * Called once from the watcher thread when watching stops, after the
+		 * last call to {@link #newFramesImported(int, boolean)}.
+		 *
+		 * @param complete
+		 *            whether all frames were imported.
+		 */
+		public default void watchStopped( final boolean complete )
+		{}
+	}
+
+	private final TGMMImporter2 importer;
+
+	private final NewFramesListener listener;
+
+	private final Logger logger;
+
+	private final long period;
+
+	private final long idleTimeout;
+
+	private final ScheduledExecutorService executor;
+
+	private long lastNewFrameTime;
+
+	private boolean stopped = false;
+
+	/**
+	 * Creates a new watcher.
+	 *
+	 * @param importer
+	 *            the importer to append frames with. Must have already
+	 *            imported a first batch or have been resumed from an existing
+	 *            model.
+	 * @param listener
+	 *            the listener notified when frames are appended.
+	 * @param period
+	 *            the polling period, in seconds.
+	 * @param idleTimeout
+	 *            how long to wait for a new frame before giving up, in
+	 *            seconds.
+	 * @param logger
+	 *            a logger to report progress to.
+	 */
+	public TGMMFolderWatcher( final TGMMImporter2 importer, final NewFramesListener listener, final long period, final long idleTimeout, final Logger logger )
+	{
+		this.importer = importer;
+		this.listener = listener;
+		this.period = period;
+		this.idleTimeout = idleTimeout;
+		this.logger = logger;
+		this.executor = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "MaMuT TGMM folder watcher thread" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Starts watching the TGMM folder. Returns immediately.
+	 */
+	public void start()
+	{
+		lastNewFrameTime = System.currentTimeMillis();
+		logger.log( "Watching TGMM folder for new frames after frame " + importer.getLastFrame() + ".\n" );
+		executor.scheduleWithFixedDelay( () -> poll(), period, period, TimeUnit.SECONDS );
+	}
+
+	/**
+	 * Stops watching the TGMM folder. The listener is notified on the watcher
+	 * thread, after the poll in progress if any.
+	 */
+	public synchronized void stop()
+	{
+		if ( stopped )
+			return;
+
+		stopped = true;
+		executor.execute( () -> notifyStopped() );
+		executor.shutdown();
+	}
+
+	/**
+	 * Blocks until this watcher stops.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public void awaitTermination() throws InterruptedException
+	{
+		executor.awaitTermination( Long.MAX_VALUE, TimeUnit.DAYS );
+	}
+
+	private void notifyStopped()
+	{
+		try
+		{
+			listener.watchStopped( importer.isComplete() );
+		}
+		catch ( final RuntimeException e )
+		{
+			logger.error( "Error while finishing TGMM import:\n" + e.getMessage() + '\n' );
+			e.printStackTrace();
+		}
+	}
+
+	private void poll()
+	{
+		final int previousLastFrame = importer.getLastFrame();
+		if ( !importer.processNewFrames() )
+		{
+			logger.error( importer.getErrorMessage() );
+			stop();
+			return;
+		}
+
+		final int lastFrame = importer.getLastFrame();
+		final boolean complete = importer.isComplete();
+		if ( lastFrame != previousLastFrame )
+		{
+			lastNewFrameTime = System.currentTimeMillis();
+			try
+			{
+				listener.newFramesImported( lastFrame, complete );
+			}
+			catch ( final RuntimeException e )
+			{
+				logger.error( "Error while processing new TGMM frames:\n" + e.getMessage() + '\n' );
+				e.printStackTrace();
+			}
+		}
+
+		if ( complete )
+		{
+			logger.log( "TGMM import complete.\n" );
+			stop();
+		}
+		else if ( System.currentTimeMillis() - lastNewFrameTime > 1000 * idleTimeout )
+		{
+			logger.log( "No new TGMM frame for " + idleTimeout + " s. Stopped watching TGMM folder.\n" );
+			stop();
+		}
+	}
+}
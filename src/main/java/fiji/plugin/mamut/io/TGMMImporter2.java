@@ -21,17 +21,28 @@
  */
 package fiji.plugin.mamut.io;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
@@ -48,27 +59,51 @@ import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
 import mpicbg.spim.data.sequence.TimePoint;
 import net.imglib2.RealInterval;
-import net.imglib2.RealLocalizable;
-import net.imglib2.RealPoint;
 import net.imglib2.algorithm.Benchmark;
 import net.imglib2.algorithm.OutputAlgorithm;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.util.Intervals;
 import net.imglib2.util.LinAlgHelpers;
 import net.imglib2.util.Util;
 
 public class TGMMImporter2 implements OutputAlgorithm< Model >, Benchmark
 {
 
+	/**
+	 * How imported spots are named. Spots are named {@code lineage (id)} after
+	 * their TGMM lineage and id in all cases, but building and storing one
+	 * string per detection is a significant part of the import cost.
+	 */
+	public enum SpotNaming
+	{
+		/** Names are formatted when the spot is created. */
+		FORMAT,
+		/**
+		 * Names are formatted when the spot is created, and shared between
+		 * spots with the same lineage and id when they are still in a small
+		 * fixed-size cache.
+		 */
+		INTERN,
+		/**
+		 * Names are only formatted when they are first requested, for
+		 * instance when the model is saved.
+		 */
+		DEFER;
+	}
+
+	private static final String GZ_EXTENSION = ".gz";
+
 	private static final FilenameFilter xmlFilter = new FilenameFilter()
 	{
 		@Override
 		public boolean accept( final File folder, final String name )
 		{
-			return ( name.toLowerCase().endsWith( ".xml" ) );
+			final String lc = name.toLowerCase();
+			return ( lc.endsWith( ".xml" ) || lc.endsWith( ".xml" + GZ_EXTENSION ) );
 		}
 	};
 
+	private static final String[] ARCHIVE_EXTENSIONS = new String[] { ".tar", ".tar.gz", ".tgz" };
+
 	private static final String BASE_ERROR_MSG = "[TGMMImporter] ";
 
 	private static final String XML_DETECTION_NAME = "GaussianMixtureModel";
@@ -89,6 +124,12 @@ public class TGMMImporter2 implements OutputAlgorithm< Model >, Benchmark
 
 	public static final Pattern DEFAULT_PATTERN = Pattern.compile( ".+_frame(\\d+)\\.xml" );
 
+	/**
+	 * Pattern used to retrieve the TGMM id from the name of a spot created by
+	 * this importer, of the shape {@code lineage (id)}.
+	 */
+	private static final Pattern SPOT_NAME_PATTERN = Pattern.compile( ".*\\((\\d+)\\)\\s*$" );
+
 	private final File file;
 
 	private String errorMessage;
@@ -98,20 +139,62 @@ public class TGMMImporter2 implements OutputAlgorithm< Model >, Benchmark
 	private Model model;
 
 	private final List< AffineTransform3D > transforms;
-	
+
 	private final List< TimePoint > timepoints;
 
 	private final Logger logger;
 
 	private long processingTime;
 
+	/*
+	 * Time spent in each phase of the last call to process(), in ns.
+	 */
+
+	private long parsingTime;
+
+	private long linkingTime;
+
+	private long divisionBreakingTime;
+
+	private long modelCreationTime;
+
 	private final RealInterval interval;
 
 	private final int tFrom;
 
 	private final int tTo;
-	
-	private final int doBreakDiv;	
+
+	private final int doBreakDiv;
+
+	/** TimePoint id &rarr; index in the time-point list. */
+	private final Map< Integer, Integer > timepointIndices;
+
+	private SpotNaming spotNaming = SpotNaming.FORMAT;
+
+	/** Size of the shared spot names cache. Must be a power of 2. */
+	private static final int INTERN_CACHE_SIZE = 1 << 16;
+
+	/**
+	 * Shared spot names, when using {@link SpotNaming#INTERN}. Direct-mapped
+	 * on the lineage and id, so that it stays bounded over long imports.
+	 */
+	private final String[] internedNames = new String[ INTERN_CACHE_SIZE ];
+
+	private final int[] internedLineages = new int[ INTERN_CACHE_SIZE ];
+
+	private final int[] internedIds = new int[ INTERN_CACHE_SIZE ];
+
+	/**
+	 * The TGMM id &rarr; spot map of the last frame imported. Used to link the
+	 * spots of frames appended later to the model.
+	 */
+	private Map< Integer, Spot > lastSpotID;
+
+	/**
+	 * The TGMM frame number of the last frame imported, or -1 if nothing was
+	 * imported yet.
+	 */
+	private int lastFrame = -1;
 
 	/*
 	 * CONSTRUCTORS
@@ -128,6 +211,9 @@ public class TGMMImporter2 implements OutputAlgorithm< Model >, Benchmark
 		this.tFrom = tFrom;
 		this.tTo = tTo;
 		this.doBreakDiv = doBreakDiv;
+		this.timepointIndices = new HashMap<>( timepoints.size() );
+		for ( int i = 0; i < timepoints.size(); i++ )
+			timepointIndices.put( Integer.valueOf( timepoints.get( i ).getId() ), Integer.valueOf( i ) );
 	}
 
 	/*
@@ -147,9 +233,12 @@ public class TGMMImporter2 implements OutputAlgorithm< Model >, Benchmark
 			errorMessage = BASE_ERROR_MSG + "Folder " + file + " cannot be read.\n";
 			return false;
 		}
+		if ( isArchive() )
+			return true;
+
 		if ( !file.isDirectory() )
 		{
-			errorMessage = BASE_ERROR_MSG + file + " is not a folder.\n";
+			errorMessage = BASE_ERROR_MSG + file + " is not a folder nor a tar archive.\n";
 			return false;
 		}
 
@@ -165,394 +254,944 @@ public class TGMMImporter2 implements OutputAlgorithm< Model >, Benchmark
 	public boolean process()
 	{
 		final long start = System.currentTimeMillis();
+		parsingTime = 0;
+		linkingTime = 0;
+		divisionBreakingTime = 0;
+		modelCreationTime = 0;
 
 		model = new Model();
 		final SpotCollection sc = new SpotCollection();
 		final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = new SimpleWeightedGraph<>( DefaultWeightedEdge.class );
 
-		final double[] targetCoordsHolder = new double[ 3 ];
-		final double[] sourceCoordsHolder = new double[ 3 ];
-
-		/*
-		 * Grab all the XML files
-		 */
-
-		final File[] xmlFiles = file.listFiles( xmlFilter );
-		Arrays.sort(xmlFiles);
-		
-		/*
-		 * Extract frame information from filename. It is not stored elsewhere
-		 * so we have to rely on a specific pattern to get it. Note that it is
-		 * not robust at all.
-		 */
 		logger.setProgress( 0d );
 		logger.setStatus( "Importing TGMM files." );
-		final int[] frames = new int[ xmlFiles.length ];
-		logger.log( "Importing " + frames.length + " TGMM files.\n" );
 
-		for ( int i = 0; i < frames.length; i++ )
+		File xmlFile = null;
+		try
 		{
-			final String name = xmlFiles[ i ].getName();
-			final Matcher matcher = framePattern.matcher( name );
-			if ( !matcher.matches() )
+			final SAXBuilder saxBuilder = new SAXBuilder();
+
+			/*
+			 * Grab all the XML files. The entries of an archive can only be
+			 * read in the order they are stored, so we parse them all before
+			 * linking them in frame order.
+			 */
+
+			final NavigableMap< Integer, File > xmlFiles;
+			final NavigableMap< Integer, FrameData > archiveFrames;
+			final NavigableSet< Integer > frames;
+			if ( isArchive() )
 			{
-				errorMessage = BASE_ERROR_MSG + "File " + name + " does not match the name pattern.\n";
-				return false;
+				logger.log( "Importing TGMM files from archive " + file + ".\n" );
+				xmlFiles = null;
+				final long t0 = System.nanoTime();
+				archiveFrames = readArchive( saxBuilder );
+				parsingTime += System.nanoTime() - t0;
+				if ( null == archiveFrames )
+					return false;
+				frames = archiveFrames.navigableKeySet();
 			}
-			final String strFrame = matcher.group( 1 );
-			try
+			else
 			{
-				final int frame = Integer.parseInt( strFrame );
-				frames[ i ] = frame;
+				xmlFiles = listFrameFiles();
+				if ( null == xmlFiles )
+					return false;
+				archiveFrames = null;
+				frames = xmlFiles.navigableKeySet();
+				logger.log( "Importing " + xmlFiles.size() + " TGMM files.\n" );
 			}
-			catch ( final NumberFormatException nfe )
+
+			/*
+			 * Read XML
+			 */
+
+			Map< Integer, Spot > previousSpotID = null;
+			int t = 0;
+			for ( final Integer iframe : frames )
 			{
-				errorMessage = BASE_ERROR_MSG + "Could not retrieve frame number from file " + file + ".\n" + nfe.getMessage() + "\n";
-				return false;
+				final int frame = iframe.intValue();
+				t++;
+				if ( frame < tFrom || frame > tTo )
+				{
+					continue;
+				}
+
+				logger.log( "Processing frame " + frame + ". " );
+				final int timepointIndex = getTimepointIndex( frame );
+				if ( timepointIndex < 0 )
+				{
+					final Object source = null == xmlFiles ? file : xmlFiles.get( iframe );
+					errorMessage = BASE_ERROR_MSG + "Unable to find frame " + frame + " of " + source + " in the image data time-points.\n";
+					return false;
+				}
+
+				final FrameData frameData;
+				if ( null == xmlFiles )
+				{
+					frameData = archiveFrames.get( iframe );
+				}
+				else
+				{
+					xmlFile = xmlFiles.get( iframe );
+					final long t0 = System.nanoTime();
+					frameData = readFrame( saxBuilder, xmlFile, transforms.get( timepointIndex ) );
+					parsingTime += System.nanoTime() - t0;
+					if ( null == frameData )
+						return false;
+				}
+				final long t1 = System.nanoTime();
+				linkFrame( frameData, previousSpotID, frame, graph );
+				linkingTime += System.nanoTime() - t1;
+
+				/*
+				 * Finished inspecting a frame. Store it in the spot collection.
+				 */
+
+				sc.put( timepointIndex, frameData.spots );
+				previousSpotID = frameData.spotID;
+				lastSpotID = frameData.spotID;
+				lastFrame = frame;
+				logger.log( "Found " + frameData.spots.size() + " spots.\n" );
+				logger.setProgress( ( double ) t / frames.size() );
 			}
-			catch ( final IndexOutOfBoundsException iooe )
+
+			final long t2 = System.nanoTime();
+			breakDivisions( graph );
+			divisionBreakingTime = System.nanoTime() - t2;
+		}
+		catch ( final JDOMException e )
+		{
+			errorMessage = BASE_ERROR_MSG + "File " + xmlFile + " is not a poperly formed XML file.\n" + e.getMessage() + "\n";
+			return false;
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MSG + "Could not open file " + xmlFile + " for reading.\n" + e.getMessage() + "\n";
+			return false;
+		}
+		finally
+		{
+			final long t3 = System.nanoTime();
+			sc.setVisible( true );
+			model.setSpots( sc, false );
+			model.setTracks( graph, false );
+			modelCreationTime = System.nanoTime() - t3;
+
+			final long end = System.currentTimeMillis();
+			processingTime = end - start;
+			logger.setProgress( 0d );
+			logger.setStatus( "" );
+		}
+
+		logger.log( String.format( "Import completed in %.1f s.\n", ( processingTime / 1000d ) ) );
+		return true;
+	}
+
+	/**
+	 * Prepares this importer to append new TGMM frames to the specified
+	 * existing model, typically loaded from a MaMuT file created by a previous
+	 * import.
+	 * <p>
+	 * The last non-empty frame of the model is taken as the last frame
+	 * imported, and the TGMM ids of its spots are retrieved from their name.
+	 * This only works for spots named by this importer, as
+	 * {@code lineage (id)}.
+	 *
+	 * @param existingModel
+	 *            the model to append new frames to.
+	 * @return <code>true</code> if the last imported frame and its TGMM ids
+	 *         could be retrieved.
+	 */
+	public boolean resume( final Model existingModel )
+	{
+		final SpotCollection sc = existingModel.getSpots();
+		Integer lastTimepointIndex = null;
+		for ( final Integer iframe : sc.keySet().descendingSet() )
+		{
+			if ( sc.getNSpots( iframe.intValue(), false ) > 0 )
+			{
+				lastTimepointIndex = iframe;
+				break;
+			}
+		}
+		if ( null == lastTimepointIndex )
+		{
+			errorMessage = BASE_ERROR_MSG + "The model to append to is empty.\n";
+			return false;
+		}
+		if ( lastTimepointIndex.intValue() >= timepoints.size() )
+		{
+			errorMessage = BASE_ERROR_MSG + "The last frame of the model (" + lastTimepointIndex + ") is not a time-point of the image data.\n";
+			return false;
+		}
+
+		final Map< Integer, Spot > spotID = new HashMap<>( sc.getNSpots( lastTimepointIndex.intValue(), false ) );
+		for ( final Spot spot : sc.iterable( lastTimepointIndex.intValue(), false ) )
+		{
+			final String name = spot.getName();
+			final Matcher matcher = null == name ? null : SPOT_NAME_PATTERN.matcher( name );
+			if ( null == matcher || !matcher.matches() )
 			{
-				errorMessage = BASE_ERROR_MSG + "File " + name + " is retrieved as Frame "
-						+ Integer.parseInt( strFrame )
-						+ " that exceeds the maximum index.\n" + iooe.getMessage() + "\n";
+				errorMessage = BASE_ERROR_MSG + "Cannot retrieve the TGMM id of spot " + spot + " in the last frame of the model.\n";
 				return false;
 			}
+			spotID.put( Integer.valueOf( matcher.group( 1 ) ), spot );
 		}
 
-		/*
-		 * Read XML
-		 */
+		this.model = existingModel;
+		this.lastSpotID = spotID;
+		this.lastFrame = timepoints.get( lastTimepointIndex.intValue() ).getId();
+		logger.log( "Resuming TGMM import after frame " + lastFrame + ".\n" );
+		return true;
+	}
 
+	/**
+	 * Imports the TGMM frames that appeared in the folder since the last
+	 * import, and appends them to the model. New spots are linked to the spots
+	 * of the last imported frame. The model is modified within a single
+	 * update, so that listeners are notified once for all the new frames.
+	 * <p>
+	 * Requires {@link #process()} or {@link #resume(Model)} to have been
+	 * called first. A last frame file that cannot be parsed is assumed to be
+	 * still being written by TGMM: the import stops before it and it will be
+	 * read at the next call.
+	 *
+	 * @return <code>true</code> if no error occurred, even if no new frame was
+	 *         found.
+	 */
+	public boolean processNewFrames()
+	{
+		if ( null == model || null == lastSpotID )
+		{
+			errorMessage = BASE_ERROR_MSG + "Nothing was imported yet, cannot append new frames.\n";
+			return false;
+		}
+		if ( isArchive() )
+		{
+			errorMessage = BASE_ERROR_MSG + "Cannot append new frames from archive " + file + ".\n";
+			return false;
+		}
+
+		final long start = System.currentTimeMillis();
+		final NavigableMap< Integer, File > allFiles = listFrameFiles();
+		if ( null == allFiles )
+			return false;
+
+		final NavigableMap< Integer, File > xmlFiles = allFiles.tailMap( Integer.valueOf( lastFrame ), false );
+		if ( xmlFiles.isEmpty() )
+			return true;
+
+		final SAXBuilder saxBuilder = new SAXBuilder();
+		final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = new SimpleWeightedGraph<>( DefaultWeightedEdge.class );
+		final Map< Integer, Collection< Spot > > newSpots = new TreeMap<>();
+
+		Map< Integer, Spot > previousSpotID = lastSpotID;
+		int newLastFrame = lastFrame;
 		File xmlFile = null;
 		try
 		{
-			final SAXBuilder saxBuilder = new SAXBuilder();
+			for ( final Integer iframe : xmlFiles.keySet() )
+			{
+				final int frame = iframe.intValue();
+				if ( frame < tFrom || frame > tTo )
+					continue;
 
-			Map< Integer, Spot > previousSpotID = null;
-			Map< Integer, Spot > currentSpotID;
-			AffineTransform3D transform = transforms.get( 0 );
-			int timepointIndex;
+				final int timepointIndex = getTimepointIndex( frame );
+				if ( timepointIndex < 0 )
+				{
+					errorMessage = BASE_ERROR_MSG + "Unable to find frame " + frame + " in the image data time-points.\n";
+					return false;
+				}
 
-			for ( int t = 0; t < frames.length; t++ )
-			{
-				if ( frames[ t ] < tFrom || frames[ t ] > tTo )
+				xmlFile = xmlFiles.get( iframe );
+				final FrameData frameData;
+				try
 				{
-					continue;
+					frameData = readFrame( saxBuilder, xmlFile, transforms.get( timepointIndex ) );
+					if ( null == frameData )
+						return false;
 				}
+				catch ( final JDOMException | IOException e )
+				{
+					if ( iframe.equals( xmlFiles.lastKey() ) )
+						break; // Probably still being written.
+					throw e;
+				}
+				linkFrame( frameData, previousSpotID, frame, graph );
 
-				logger.log( "Processing frame " + frames[ t ] + ". " );
-				timepointIndex = -1;
-				
-				for ( int ii = 0; ii < timepoints.size(); ii++ )
+				for ( final Spot spot : frameData.spots )
+					spot.putFeature( Spot.POSITION_T, Double.valueOf( timepointIndex ) );
+
+				newSpots.put( Integer.valueOf( timepointIndex ), frameData.spots );
+				previousSpotID = frameData.spotID;
+				newLastFrame = frame;
+				logger.log( "Appending frame " + frame + ": found " + frameData.spots.size() + " spots.\n" );
+			}
+		}
+		catch ( final JDOMException e )
+		{
+			errorMessage = BASE_ERROR_MSG + "File " + xmlFile + " is not a poperly formed XML file.\n" + e.getMessage() + "\n";
+			return false;
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MSG + "Could not open file " + xmlFile + " for reading.\n" + e.getMessage() + "\n";
+			return false;
+		}
+
+		if ( newSpots.isEmpty() )
+			return true;
+
+		breakDivisions( graph );
+
+		model.beginUpdate();
+		try
+		{
+			for ( final Integer timepointIndex : newSpots.keySet() )
+				for ( final Spot spot : newSpots.get( timepointIndex ) )
+					model.addSpotTo( spot, timepointIndex );
+
+			for ( final DefaultWeightedEdge edge : graph.edgeSet() )
+				model.addEdge( graph.getEdgeSource( edge ), graph.getEdgeTarget( edge ), graph.getEdgeWeight( edge ) );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		lastSpotID = previousSpotID;
+		lastFrame = newLastFrame;
+		processingTime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	/**
+	 * Sets how imported spots are named. The default is
+	 * {@link SpotNaming#FORMAT}.
+	 *
+	 * @param spotNaming
+	 *            the spot naming policy.
+	 */
+	public void setSpotNaming( final SpotNaming spotNaming )
+	{
+		this.spotNaming = spotNaming;
+	}
+
+	/**
+	 * Returns the TGMM frame number of the last frame imported.
+	 *
+	 * @return the last frame imported, or -1 if nothing was imported yet.
+	 */
+	public int getLastFrame()
+	{
+		return lastFrame;
+	}
+
+	/**
+	 * Returns <code>true</code> if all the frames in the import interval have
+	 * been imported, and no new frame can be appended.
+	 *
+	 * @return whether the import is complete.
+	 */
+	public boolean isComplete()
+	{
+		return lastFrame >= tTo || getTimepointIndex( lastFrame ) == timepoints.size() - 1;
+	}
+
+	/**
+	 * Lists the XML files of the TGMM folder, sorted by the frame number
+	 * extracted from their name. The frame information is not stored elsewhere
+	 * so we have to rely on a specific pattern to get it. Note that it is not
+	 * robust at all.
+	 *
+	 * @return a new map, or <code>null</code> if a file name could not be
+	 *         parsed.
+	 */
+	private NavigableMap< Integer, File > listFrameFiles()
+	{
+		final File[] files = file.listFiles( xmlFilter );
+		final NavigableMap< Integer, File > xmlFiles = new TreeMap<>();
+		if ( null == files )
+			return xmlFiles;
+
+		for ( final File xmlFile : files )
+		{
+			final String name = xmlFile.getName();
+			final int frame = getFrame( name );
+			if ( frame < 0 )
+			{
+				errorMessage = BASE_ERROR_MSG + "Could not retrieve frame number from file " + name + ": it does not match the name pattern.\n";
+				return null;
+			}
+			xmlFiles.put( Integer.valueOf( frame ), xmlFile );
+		}
+		return xmlFiles;
+	}
+
+	/**
+	 * Returns the frame number encoded in the specified file or archive entry
+	 * name. Leading folders and a trailing {@code .gz} extension are ignored
+	 * before matching the frame pattern.
+	 *
+	 * @return the frame number, or -1 if the name does not match the frame
+	 *         pattern.
+	 */
+	private int getFrame( final String entryName )
+	{
+		String name = entryName.substring( entryName.lastIndexOf( '/' ) + 1 );
+		if ( name.toLowerCase().endsWith( GZ_EXTENSION ) )
+			name = name.substring( 0, name.length() - GZ_EXTENSION.length() );
+
+		final Matcher matcher = framePattern.matcher( name );
+		if ( !matcher.matches() )
+			return -1;
+		try
+		{
+			return Integer.parseInt( matcher.group( 1 ) );
+		}
+		catch ( final NumberFormatException nfe )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the TGMM input is a tar archive, possibly
+	 * gzip-compressed, rather than a folder.
+	 */
+	private boolean isArchive()
+	{
+		if ( !file.isFile() )
+			return false;
+		final String lc = file.getName().toLowerCase();
+		return Arrays.stream( ARCHIVE_EXTENSIONS ).anyMatch( ext -> lc.endsWith( ext ) );
+	}
+
+	/**
+	 * Parses all the TGMM frame files of a tar archive, in the order they are
+	 * stored in the archive. Entries that do not match the frame pattern or
+	 * that are outside the import interval are skipped, so that an archive of
+	 * a whole TGMM run can be used. Entries can be individually gzipped. An
+	 * archive in which a frame appears twice, for instance because it holds
+	 * several <code>XML_finalResult</code> folders, is rejected rather than
+	 * silently keeping one of them.
+	 *
+	 * @return a new map of frame data sorted by frame, or <code>null</code> if
+	 *         an error occurred.
+	 */
+	private NavigableMap< Integer, FrameData > readArchive( final SAXBuilder saxBuilder )
+	{
+		final NavigableMap< Integer, FrameData > frames = new TreeMap<>();
+		final Map< Integer, String > frameEntries = new HashMap<>();
+		final boolean gzipped = !file.getName().toLowerCase().endsWith( ".tar" );
+		String entryName = null;
+		try (final InputStream fis = new BufferedInputStream( new FileInputStream( file ), 1 << 16 );
+				final TarArchiveInputStream tar = new TarArchiveInputStream( gzipped ? new GZIPInputStream( fis, 1 << 16 ) : fis ))
+		{
+			// The XML parser closes the stream it reads, but the archive
+			// stream must stay open for the next entries.
+			final InputStream entryStream = new FilterInputStream( tar )
+			{
+				@Override
+				public void close()
+				{}
+			};
+
+			ArchiveEntry entry;
+			while ( null != ( entry = tar.getNextEntry() ) )
+			{
+				if ( entry.isDirectory() )
+					continue;
+
+				entryName = entry.getName();
+				final int frame = getFrame( entryName );
+				if ( frame < 0 || frame < tFrom || frame > tTo )
+					continue;
+
+				final String previousEntry = frameEntries.put( Integer.valueOf( frame ), entryName );
+				if ( null != previousEntry )
 				{
-					if ( timepoints.get( ii ).getId() == frames[ t ] )
-					{
-						transform = transforms.get( ii );
-						timepointIndex = ii;
-						break;
-					}
+					errorMessage = BASE_ERROR_MSG + "Frame " + frame + " appears twice in archive " + file + ", as " + previousEntry + " and as " + entryName
+							+ ". The archive must hold the results of a single TGMM run.\n";
+					return null;
 				}
-				
+
+				final int timepointIndex = getTimepointIndex( frame );
 				if ( timepointIndex < 0 )
 				{
-					errorMessage = BASE_ERROR_MSG + "Unable to find frame " + frames[ t ] + " in " + xmlFile + ".\n";
-					return false;
+					errorMessage = BASE_ERROR_MSG + "Unable to find frame " + frame + " of entry " + entryName + " in the image data time-points.\n";
+					return null;
 				}
 
-				xmlFile = xmlFiles[ t ];
-				final Document doc = saxBuilder.build( xmlFile );
-				final Element root = doc.getRootElement();
-				final List< Element > detectionEls = root.getChildren( XML_DETECTION_NAME );
+				final InputStream is = entryName.toLowerCase().endsWith( GZ_EXTENSION ) ? new GZIPInputStream( entryStream ) : entryStream;
+				final FrameData frameData = readFrame( saxBuilder, is, entryName, transforms.get( timepointIndex ) );
+				if ( null == frameData )
+					return null;
+				frames.put( Integer.valueOf( frame ), frameData );
+			}
+		}
+		catch ( final JDOMException e )
+		{
+			errorMessage = BASE_ERROR_MSG + "Entry " + entryName + " of archive " + file + " is not a poperly formed XML file.\n" + e.getMessage() + "\n";
+			return null;
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MSG + "Could not read archive " + file + ".\n" + e.getMessage() + "\n";
+			return null;
+		}
+		return frames;
+	}
+
+	private int getTimepointIndex( final int frame )
+	{
+		final Integer index = timepointIndices.get( Integer.valueOf( frame ) );
+		return null == index ? -1 : index.intValue();
+	}
+
+	private Spot createSpot( final double x, final double y, final double z, final double radius, final double quality, final int lineage, final int id )
+	{
+		switch ( spotNaming )
+		{
+		case DEFER:
+			return new TGMMSpot( x, y, z, radius, quality, lineage, id );
+		case INTERN:
+		{
+			final int slot = ( 31 * lineage + id ) & ( INTERN_CACHE_SIZE - 1 );
+			String name = internedNames[ slot ];
+			if ( null == name || internedLineages[ slot ] != lineage || internedIds[ slot ] != id )
+			{
+				name = lineage + " (" + id + ")";
+				internedNames[ slot ] = name;
+				internedLineages[ slot ] = lineage;
+				internedIds[ slot ] = id;
+			}
+			return new Spot( x, y, z, radius, quality, name );
+		}
+		case FORMAT:
+		default:
+			return new Spot( x, y, z, radius, quality, lineage + " (" + id + ")" );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified position is in the crop
+	 * interval, bounds included. Avoids wrapping the position in a
+	 * {@link net.imglib2.RealLocalizable} for every detection.
+	 */
+	private static final boolean contains( final RealInterval interval, final double[] position )
+	{
+		for ( int d = 0; d < position.length; d++ )
+			if ( position[ d ] < interval.realMin( d ) || position[ d ] > interval.realMax( d ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Parses all the detections of a TGMM frame file, plain or gzipped.
+	 */
+	private FrameData readFrame( final SAXBuilder saxBuilder, final File xmlFile, final AffineTransform3D transform ) throws JDOMException, IOException
+	{
+		try (final InputStream fis = new BufferedInputStream( new FileInputStream( xmlFile ), 1 << 16 ))
+		{
+			final InputStream is = xmlFile.getName().toLowerCase().endsWith( GZ_EXTENSION ) ? new GZIPInputStream( fis ) : fis;
+			return readFrame( saxBuilder, is, xmlFile.getPath(), transform );
+		}
+	}
+
+	/**
+	 * Parses all the detections of a TGMM frame file. The spots created are
+	 * not linked yet.
+	 *
+	 * @param saxBuilder
+	 *            the XML builder to use.
+	 * @param is
+	 *            the stream to read the TGMM file from.
+	 * @param xmlFile
+	 *            the name of the TGMM file, for error messages.
+	 * @param transform
+	 *            the transform that maps TGMM pixel coordinates to the global
+	 *            coordinate system.
+	 * @return the frame data, or <code>null</code> if a detection misses a
+	 *         required attribute.
+	 */
+	private FrameData readFrame( final SAXBuilder saxBuilder, final InputStream is, final String xmlFile, final AffineTransform3D transform ) throws JDOMException, IOException
+	{
+		final double[] targetCoordsHolder = new double[ 3 ];
+		final double[] sourceCoordsHolder = new double[ 3 ];
+
+		// Linear part of the transform, to scale the shape of detections.
+		final double[][] T = new double[ 3 ][ 3 ];
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				T[ r ][ c ] = transform.get( r, c );
+		final double[][] TS = new double[ 3 ][ 3 ];
+
+		final Document doc = saxBuilder.build( is, xmlFile );
+		final Element root = doc.getRootElement();
+		final List< Element > detectionEls = root.getChildren( XML_DETECTION_NAME );
+		final FrameData frameData = new FrameData( detectionEls.size() );
 
-				final Collection< Spot > spots = new ArrayList<>( detectionEls.size() );
+		/*
+		 * Parse all detections
+		 */
+
+		for ( final Element detectionEl : detectionEls )
+		{
+
+			/*
+			 * Fetch and check attribute strings.
+			 */
 
+			final String pixelPosStr = detectionEl.getAttributeValue( XML_CENTROID );
+			if ( null == pixelPosStr )
+			{
+				errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the centroid attribute (" + XML_CENTROID + ").\n";
+				return null;
+			}
+			final String[] pixelPosStrs = pixelPosStr.split( " " );
+
+			final String idStr = detectionEl.getAttributeValue( XML_ID );
+			if ( null == idStr )
+			{
+				errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the ID attribute (" + XML_ID + ").\n";
+				return null;
+			}
+
+			final String lineageStr = detectionEl.getAttributeValue( XML_LINEAGE );
+			if ( null == lineageStr )
+			{
+				errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the lineage attribute (" + XML_LINEAGE + ").\n";
+				return null;
+			}
+
+			final String parentStr = detectionEl.getAttributeValue( XML_PARENT );
+			if ( null == parentStr )
+			{
+				errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the parent attribute (" + XML_LINEAGE + ").\n";
+				return null;
+			}
+
+			final String scoreStr = detectionEl.getAttributeValue( XML_SCORE );
+			if ( null == scoreStr )
+			{
+				errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the score attribute (" + XML_SCORE + ").\n";
+				return null;
+			}
+
+			final String nuStr = detectionEl.getAttributeValue( XML_NU );
+			if ( null == nuStr )
+			{
+				errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the nu attribute (" + XML_NU + ").\n";
+				return null;
+			}
+
+			final String precMatStr = detectionEl.getAttributeValue( XML_PRECISION_MATRIX );
+			if ( null == precMatStr )
+			{
+				errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the prevision matrix attribute (" + XML_PRECISION_MATRIX + ").\n";
+				return null;
+			}
+			final String[] precMatStrs = precMatStr.split( " " );
+
+			/*
+			 * Parse attribute strings.
+			 */
+
+			try
+			{
 				/*
-				 * Parse all detections
+				 * Build position
 				 */
 
-				currentSpotID = new HashMap<>( detectionEls.size() );
-
-				for ( final Element detectionEl : detectionEls )
 				{
+					final double x = Double.parseDouble( pixelPosStrs[ 0 ] );
+					final double y = Double.parseDouble( pixelPosStrs[ 1 ] );
+					final double z = Double.parseDouble( pixelPosStrs[ 2 ] );
 
 					/*
-					 * Fetch and check attribute strings.
+					 * Map it back to global coordinate system.
 					 */
 
-					final String pixelPosStr = detectionEl.getAttributeValue( XML_CENTROID );
-					if ( null == pixelPosStr )
-					{
-						errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the centroid attribute (" + XML_CENTROID + ").\n";
-						return false;
-					}
-					final String[] pixelPosStrs = pixelPosStr.split( " " );
+					sourceCoordsHolder[ 0 ] = x;
+					sourceCoordsHolder[ 1 ] = y;
+					sourceCoordsHolder[ 2 ] = z;
+				}
 
-					final String idStr = detectionEl.getAttributeValue( XML_ID );
-					if ( null == idStr )
-					{
-						errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the ID attribute (" + XML_ID + ").\n";
-						return false;
-					}
+				transform.apply( sourceCoordsHolder, targetCoordsHolder );
 
-					final String lineageStr = detectionEl.getAttributeValue( XML_LINEAGE );
-					if ( null == lineageStr )
-					{
-						errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the lineage attribute (" + XML_LINEAGE + ").\n";
-						return false;
-					}
+				final double mx = targetCoordsHolder[ 0 ];
+				final double my = targetCoordsHolder[ 1 ];
+				final double mz = targetCoordsHolder[ 2 ];
 
-					final String parentStr = detectionEl.getAttributeValue( XML_PARENT );
-					if ( null == parentStr )
-					{
-						errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the parent attribute (" + XML_LINEAGE + ").\n";
-						return false;
-					}
+				/*
+				 * Test whether we are in the crop interval.
+				 */
 
-					final String scoreStr = detectionEl.getAttributeValue( XML_SCORE );
-					if ( null == scoreStr )
-					{
-						errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the score attribute (" + XML_SCORE + ").\n";
-						return false;
-					}
+				if ( null != interval && !contains( interval, targetCoordsHolder ) )
+				{
+					continue;
+				}
 
-					final String nuStr = detectionEl.getAttributeValue( XML_NU );
-					if ( null == nuStr )
-					{
-						errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the nu attribute (" + XML_NU + ").\n";
-						return false;
-					}
+				/*
+				 * ID and parent and lineage and score.
+				 */
 
-					final String precMatStr = detectionEl.getAttributeValue( XML_PRECISION_MATRIX );
-					if ( null == precMatStr )
-					{
-						errorMessage = BASE_ERROR_MSG + "Element " + detectionEl + " in file " + xmlFile + " misses the prevision matrix attribute (" + XML_PRECISION_MATRIX + ").\n";
-						return false;
-					}
-					final String[] precMatStrs = precMatStr.split( " " );
+				final int id = Integer.parseInt( idStr );
+				final double score = Double.parseDouble( scoreStr );
+				final int lineage = Integer.parseInt( lineageStr );
+				final int parent = Integer.parseInt( parentStr );
 
-					/*
-					 * Parse attribute strings.
-					 */
+				/*
+				 * Shape and radius
+				 */
 
-					try
-					{
-						/*
-						 * Build position
-						 */
-
-						{
-							final double x = Double.parseDouble( pixelPosStrs[ 0 ] );
-							final double y = Double.parseDouble( pixelPosStrs[ 1 ] );
-							final double z = Double.parseDouble( pixelPosStrs[ 2 ] );
-
-							/*
-							 * Map it back to global coordinate system.
-							 */
-
-							sourceCoordsHolder[ 0 ] = x;
-							sourceCoordsHolder[ 1 ] = y;
-							sourceCoordsHolder[ 2 ] = z;
-						}
-
-						transform.apply( sourceCoordsHolder, targetCoordsHolder );
-
-						final double mx = targetCoordsHolder[ 0 ];
-						final double my = targetCoordsHolder[ 1 ];
-						final double mz = targetCoordsHolder[ 2 ];
-
-						/*
-						 * Test whether we are in the crop interval.
-						 */
-
-						final RealLocalizable contained = new RealPoint( targetCoordsHolder );
-						if ( null != interval && !Intervals.contains( interval, contained ) )
-						{
-							continue;
-						}
-
-						/*
-						 * ID and parent and lineage and score.
-						 */
-
-						final int id = Integer.parseInt( idStr );
-						final double score = Double.parseDouble( scoreStr );
-						final int lineage = Integer.parseInt( lineageStr );
-						final int parent = Integer.parseInt( parentStr );
-
-						/*
-						 * Shape and radius
-						 */
-
-						final double nu = Double.parseDouble( nuStr );
-						final double[] vals = new double[ 9 ];
-						for ( int j = 0; j < vals.length; j++ )
-						{
-							vals[ j ] = nu * Double.parseDouble( precMatStrs[ j ] );
-						}
-						final Matrix precMat = new Matrix( vals, 3 );
-						final Matrix covMat = precMat.inverse();
-
-						/*
-						 * Scale shape properly
-						 */
-
-						final double[][] S = covMat.getArray();
-						final double[][] T = new double[ 3 ][ 3 ];
-						for ( int r = 0; r < 3; ++r )
-							for ( int c = 0; c < 3; ++c )
-								T[ r ][ c ] = transform.get( r, c );
-						final double[][] TS = new double[ 3 ][ 3 ];
-						LinAlgHelpers.mult( T, S, TS );
-						LinAlgHelpers.multABT( TS, T, S );
-						// note that by writing to S we write the internal array
-						// of covMat.
-
-						/*
-						 * Build a mean radius
-						 */
-
-						final double nSigmas = 2; // ellipsoid is at nSigmas std
-													// devs of the Gaussian
-						final EigenvalueDecomposition eig = covMat.eig();
-						final double[] radii = eig.getRealEigenvalues();
-						for ( int i = 0; i < radii.length; ++i )
-							radii[ i ] = Math.sqrt( radii[ i ] );
-						final double radius = nSigmas * Util.average( radii );
-
-						/*
-						 * Make a spot and add it to this frame collection.
-						 */
-
-						final Spot spot = new Spot( mx, my, mz, radius, score, lineage + " (" + id + ")" );
-						spots.add( spot );
-						currentSpotID.put( Integer.valueOf( id ), spot );
-
-						graph.addVertex( spot );
-						if ( parent >= 0 && previousSpotID != null )
-						{
-							final Spot source = previousSpotID.get( Integer.valueOf( parent ) );
-							if ( null == source )
-							{
-								System.out.println( BASE_ERROR_MSG + "The parent of the current spot (frame " + frames[ t ] + ", id = " + id + " could not be found (was expected in frame " + ( frames[ t ] - 1 ) + " with id = " + parent + ".\n" );
-								continue;
-							}
-							final DefaultWeightedEdge edge = graph.addEdge( source, spot );
-							if ( null == edge )
-							{
-								System.out.println( BASE_ERROR_MSG + "Trouble adding edge between " + source + " and " + spot + ". Edge already exists?" );
-								continue;
-							}
-						}
-					}
-					catch ( final NumberFormatException nfe )
-					{
-						errorMessage = BASE_ERROR_MSG + "Could not parse attributes of element " + detectionEl + " in xmlFile " + xmlFile + ".\n" + nfe.getMessage() + "\n";
-//					return false;
-						System.out.println( errorMessage );
-						continue;
-					}
+				final double nu = Double.parseDouble( nuStr );
+				final double[] vals = new double[ 9 ];
+				for ( int j = 0; j < vals.length; j++ )
+				{
+					vals[ j ] = nu * Double.parseDouble( precMatStrs[ j ] );
 				}
-				
+				final Matrix precMat = new Matrix( vals, 3 );
+				final Matrix covMat = precMat.inverse();
+
 				/*
-				 * Finished inspecting a frame. Store it in the spot collection.
+				 * Scale shape properly
+				 */
+
+				final double[][] S = covMat.getArray();
+				LinAlgHelpers.mult( T, S, TS );
+				LinAlgHelpers.multABT( TS, T, S );
+				// note that by writing to S we write the internal array
+				// of covMat.
+
+				/*
+				 * Build a mean radius
+				 */
+
+				final double nSigmas = 2; // ellipsoid is at nSigmas std
+											// devs of the Gaussian
+				final EigenvalueDecomposition eig = covMat.eig();
+				final double[] radii = eig.getRealEigenvalues();
+				for ( int i = 0; i < radii.length; ++i )
+					radii[ i ] = Math.sqrt( radii[ i ] );
+				final double radius = nSigmas * Util.average( radii );
+
+				/*
+				 * Make a spot and add it to this frame collection.
 				 */
 
-				sc.put( timepointIndex, spots );
-				previousSpotID = currentSpotID;
-				logger.log( "Found " + spots.size() + " spots.\n" );
-				logger.setProgress( ( double ) t / frames.length );
+				final Spot spot = createSpot( mx, my, mz, radius, score, lineage, id );
+				frameData.add( spot, id, parent );
 			}
-			/*
-			 * Break divisions, leaving only closest daughter attached
-			 */
-			 if ( doBreakDiv == 2 )
-			 {
-			 	Map< Spot, Spot > edge_remove_list = new HashMap<>( graph.edgeSet().size()/10 );
-				for ( final DefaultWeightedEdge edge_1 : graph.edgeSet() )
+			catch ( final NumberFormatException nfe )
+			{
+				errorMessage = BASE_ERROR_MSG + "Could not parse attributes of element " + detectionEl + " in xmlFile " + xmlFile + ".\n" + nfe.getMessage() + "\n";
+				logger.error( errorMessage );
+				continue;
+			}
+		}
+		return frameData;
+	}
+
+	/**
+	 * Adds the spots of a frame to the graph, and links them to their parent
+	 * in the previous frame.
+	 *
+	 * @param frameData
+	 *            the frame to link.
+	 * @param previousSpotID
+	 *            the TGMM id &rarr; spot map of the previous frame. Can be
+	 *            <code>null</code>.
+	 * @param frame
+	 *            the TGMM frame number, for error messages.
+	 * @param graph
+	 *            the graph to add the spots and links to.
+	 */
+	private void linkFrame( final FrameData frameData, final Map< Integer, Spot > previousSpotID, final int frame, final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph )
+	{
+		for ( int i = 0; i < frameData.spots.size(); i++ )
+		{
+			final Spot spot = frameData.spots.get( i );
+			graph.addVertex( spot );
+
+			final int parent = frameData.parents[ i ];
+			if ( parent >= 0 && previousSpotID != null )
+			{
+				final Spot source = previousSpotID.get( Integer.valueOf( parent ) );
+				if ( null == source )
+				{
+					logger.error( BASE_ERROR_MSG + "The parent of the current spot (frame " + frame + ", id = " + frameData.ids[ i ] + ") could not be found (was expected in frame " + ( frame - 1 ) + " with id = " + parent + ").\n" );
+					continue;
+				}
+				// The parent might belong to a previous import.
+				graph.addVertex( source );
+				final DefaultWeightedEdge edge = graph.addEdge( source, spot );
+				if ( null == edge )
+				{
+					logger.error( BASE_ERROR_MSG + "Trouble adding edge between " + source + " and " + spot + ". Edge already exists?\n" );
+					continue;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Break divisions in the specified graph, as specified by the
+	 * {@link #doBreakDiv} flag.
+	 */
+	private void breakDivisions( final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph )
+	{
+		/*
+		 * Break divisions, leaving only closest daughter attached
+		 */
+		 if ( doBreakDiv == 2 )
+		 {
+		 	Map< Spot, Spot > edge_remove_list = new HashMap<>( graph.edgeSet().size()/10 );
+			for ( final DefaultWeightedEdge edge_1 : graph.edgeSet() )
+			{
+				//check for edge_1 source already in remove list
+				if ( edge_remove_list.containsKey( graph.getEdgeSource( edge_1 ) ) )
+					continue;
+
+				for ( final DefaultWeightedEdge edge_2 : graph.edgeSet() )
 				{
-					//check for edge_1 source already in remove list
-					if ( edge_remove_list.containsKey( graph.getEdgeSource( edge_1 ) ) )
+					if ( edge_2 == edge_1 )
+						continue;
+
+					//check for edge_2 source already in remove list
+					if ( edge_remove_list.containsKey( graph.getEdgeSource( edge_2 ) ) )
 						continue;
-						
-					for ( final DefaultWeightedEdge edge_2 : graph.edgeSet() )
+
+					if ( graph.getEdgeSource( edge_2 ) == graph.getEdgeSource( edge_1 ) ) //found two daughters of same parent
 					{
-						if ( edge_2 == edge_1 )
-							continue;					
-						
-						//check for edge_2 source already in remove list
-						if ( edge_remove_list.containsKey( graph.getEdgeSource( edge_2 ) ) )
-							continue;
-							
-						if ( graph.getEdgeSource( edge_2 ) == graph.getEdgeSource( edge_1 ) ) //found two daughters of same parent
-						{
-							//find farthest daughter
-							final double d1 = graph.getEdgeSource( edge_1 ).squareDistanceTo( graph.getEdgeTarget( edge_1 ) );
-							final double d2 = graph.getEdgeSource( edge_2 ).squareDistanceTo( graph.getEdgeTarget( edge_2 ) );
-							
-							if ( d1>d2 ) //mark edge_1 for removal
-								edge_remove_list.put(graph.getEdgeSource( edge_1 ),graph.getEdgeTarget( edge_1 ));
-							else  //mark edge_2 for removal
-								edge_remove_list.put(graph.getEdgeSource( edge_2 ),graph.getEdgeTarget( edge_2 ));
-						}
+						//find farthest daughter
+						final double d1 = graph.getEdgeSource( edge_1 ).squareDistanceTo( graph.getEdgeTarget( edge_1 ) );
+						final double d2 = graph.getEdgeSource( edge_2 ).squareDistanceTo( graph.getEdgeTarget( edge_2 ) );
+
+						if ( d1>d2 ) //mark edge_1 for removal
+							edge_remove_list.put(graph.getEdgeSource( edge_1 ),graph.getEdgeTarget( edge_1 ));
+						else  //mark edge_2 for removal
+							edge_remove_list.put(graph.getEdgeSource( edge_2 ),graph.getEdgeTarget( edge_2 ));
 					}
 				}
-				
-				//remove edges
-				edge_remove_list.forEach((a,b)->graph.removeEdge(a,b));
 			}
-			else if ( doBreakDiv == 1 ) {
-			 	Map< Spot, Spot > edge_remove_list = new HashMap<>( graph.edgeSet().size()/10 );
-				for ( final DefaultWeightedEdge edge_1 : graph.edgeSet() )
+
+			//remove edges
+			edge_remove_list.forEach((a,b)->graph.removeEdge(a,b));
+		}
+		else if ( doBreakDiv == 1 ) {
+		 	Map< Spot, Spot > edge_remove_list = new HashMap<>( graph.edgeSet().size()/10 );
+			for ( final DefaultWeightedEdge edge_1 : graph.edgeSet() )
+			{
+				//check for edge_1 source already in remove list
+				if ( edge_remove_list.containsKey( graph.getEdgeSource( edge_1 ) ) )
+					continue;
+
+				for ( final DefaultWeightedEdge edge_2 : graph.edgeSet() )
 				{
-					//check for edge_1 source already in remove list
-					if ( edge_remove_list.containsKey( graph.getEdgeSource( edge_1 ) ) )
+					if ( edge_2 == edge_1 )
+						continue;
+
+					//check for edge_2 source already in remove list
+					if ( edge_remove_list.containsKey( graph.getEdgeSource( edge_2 ) ) )
 						continue;
-						
-					for ( final DefaultWeightedEdge edge_2 : graph.edgeSet() )
+
+					if ( graph.getEdgeSource( edge_2 ) == graph.getEdgeSource( edge_1 ) ) //found two daughters of same parent
 					{
-						if ( edge_2 == edge_1 )
-							continue;					
-						
-						//check for edge_2 source already in remove list
-						if ( edge_remove_list.containsKey( graph.getEdgeSource( edge_2 ) ) )
-							continue;
-							
-						if ( graph.getEdgeSource( edge_2 ) == graph.getEdgeSource( edge_1 ) ) //found two daughters of same parent
-						{
-							edge_remove_list.put(graph.getEdgeSource( edge_1 ),graph.getEdgeTarget( edge_1 ));
-							edge_remove_list.put(graph.getEdgeSource( edge_2 ),graph.getEdgeTarget( edge_2 ));
-						}
+						edge_remove_list.put(graph.getEdgeSource( edge_1 ),graph.getEdgeTarget( edge_1 ));
+						edge_remove_list.put(graph.getEdgeSource( edge_2 ),graph.getEdgeTarget( edge_2 ));
 					}
 				}
-				
-				//remove edges
-				edge_remove_list.forEach((a,b)->graph.removeEdge(a,b));
 			}
+
+			//remove edges
+			edge_remove_list.forEach((a,b)->graph.removeEdge(a,b));
 		}
-		catch ( final JDOMException e )
+	}
+
+	/**
+	 * The spots parsed from a single TGMM frame file, with their TGMM id and
+	 * the TGMM id of their parent, before they are linked.
+	 */
+	private static final class FrameData
+	{
+
+		private final List< Spot > spots;
+
+		private final Map< Integer, Spot > spotID;
+
+		private int[] ids;
+
+		private int[] parents;
+
+		public FrameData( final int capacity )
 		{
-			errorMessage = BASE_ERROR_MSG + "File " + xmlFile + " is not a poperly formed XML file.\n" + e.getMessage() + "\n";
-			return false;
+			this.spots = new ArrayList<>( capacity );
+			this.spotID = new HashMap<>( capacity );
+			this.ids = new int[ Math.max( 1, capacity ) ];
+			this.parents = new int[ Math.max( 1, capacity ) ];
 		}
-		catch ( final IOException e )
+
+		public void add( final Spot spot, final int id, final int parent )
 		{
-			errorMessage = BASE_ERROR_MSG + "Could not open file " + xmlFile + " for reading.\n" + e.getMessage() + "\n";
-			return false;
+			final int i = spots.size();
+			if ( i == ids.length )
+			{
+				ids = Arrays.copyOf( ids, 2 * i );
+				parents = Arrays.copyOf( parents, 2 * i );
+			}
+			ids[ i ] = id;
+			parents[ i ] = parent;
+			spots.add( spot );
+			spotID.put( Integer.valueOf( id ), spot );
 		}
-		finally
+	}
+
+	/**
+	 * A spot that formats its name from its TGMM lineage and id only when it
+	 * is first requested.
+	 */
+	private static final class TGMMSpot extends Spot
+	{
+
+		private final int lineage;
+
+		private final int tgmmID;
+
+		private boolean named;
+
+		public TGMMSpot( final double x, final double y, final double z, final double radius, final double quality, final int lineage, final int tgmmID )
 		{
-			sc.setVisible( true );
-			model.setSpots( sc, false );
-			model.setTracks( graph, false );
+			super( x, y, z, radius, quality, "" );
+			this.lineage = lineage;
+			this.tgmmID = tgmmID;
+		}
 
-			final long end = System.currentTimeMillis();
-			processingTime = end - start;
-			logger.setProgress( 0d );
-			logger.log( String.format( "Import completed in %.1f s.\n", ( processingTime / 1000d ) ) );
-			logger.setStatus( "" );
+		@Override
+		public String getName()
+		{
+			if ( !named )
+			{
+				super.setName( lineage + " (" + tgmmID + ")" );
+				named = true;
+			}
+			return super.getName();
 		}
 
-		return true;
+		@Override
+		public void setName( final String name )
+		{
+			super.setName( name );
+			named = true;
+		}
+
+		@Override
+		public String toString()
+		{
+			getName();
+			return super.toString();
+		}
 	}
 
 	@Override
@@ -567,6 +1206,42 @@ public class TGMMImporter2 implements OutputAlgorithm< Model >, Benchmark
 		return model;
 	}
 
+	/**
+	 * Returns the time spent parsing the TGMM files during the last call to
+	 * {@link #process()}, in ms.
+	 */
+	public long getParsingTime()
+	{
+		return parsingTime / 1000000;
+	}
+
+	/**
+	 * Returns the time spent linking spots to their parent during the last
+	 * call to {@link #process()}, in ms.
+	 */
+	public long getLinkingTime()
+	{
+		return linkingTime / 1000000;
+	}
+
+	/**
+	 * Returns the time spent breaking divisions during the last call to
+	 * {@link #process()}, in ms.
+	 */
+	public long getDivisionBreakingTime()
+	{
+		return divisionBreakingTime / 1000000;
+	}
+
+	/**
+	 * Returns the time spent building the model from the spots and links
+	 * during the last call to {@link #process()}, in ms.
+	 */
+	public long getModelCreationTime()
+	{
+		return modelCreationTime / 1000000;
+	}
+
 	@Override
 	public long getProcessingTime()
 	{
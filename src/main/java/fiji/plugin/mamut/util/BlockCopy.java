@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Utility to copy a region of an image into a contiguous {@link ArrayImg}.
+ * <p>
+ * When the source is a cell image, the region is copied cell by cell, so that
+ * the reads of each block stay within one cell instead of crossing cell
+ * boundaries at every line.
+ */
+public class BlockCopy
+{
+
+	private BlockCopy()
+	{}
+
+	/**
+	 * Copies the specified interval of the specified image into a new
+	 * {@link ArrayImg}.
+	 *
+	 * @param rai
+	 *            the image to copy from.
+	 * @param interval
+	 *            the interval to copy, in pixel coordinates of the image. Must
+	 *            be contained in the image.
+	 * @return a view on the copy, translated so that it has the same interval
+	 *         and coordinates as the region copied.
+	 */
+	public static < T extends NativeType< T > > RandomAccessibleInterval< T > copyToArrayImg( final RandomAccessibleInterval< T > rai, final Interval interval )
+	{
+		final T type = Util.getTypeFromInterval( rai ).createVariable();
+		final ArrayImg< T, ? > img = new ArrayImgFactory<>( type ).create( interval );
+		final RandomAccessibleInterval< T > target = Views.translate( img, Intervals.minAsLongArray( interval ) );
+
+		if ( !( rai instanceof AbstractCellImg ) )
+		{
+			copy( Views.interval( rai, interval ), target );
+			return target;
+		}
+
+		/*
+		 * Iterate over the cells that intersect the interval.
+		 */
+
+		final CellGrid grid = ( ( AbstractCellImg< ?, ?, ?, ? > ) rai ).getCellGrid();
+		final int n = grid.numDimensions();
+		final long[] gridMin = new long[ n ];
+		final long[] gridMax = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final int cellSize = grid.cellDimension( d );
+			gridMin[ d ] = ( interval.min( d ) - rai.min( d ) ) / cellSize;
+			gridMax[ d ] = ( interval.max( d ) - rai.min( d ) ) / cellSize;
+		}
+
+		final LocalizingIntervalIterator it = new LocalizingIntervalIterator( gridMin, gridMax );
+		final long[] cellMin = new long[ n ];
+		final long[] cellMax = new long[ n ];
+		while ( it.hasNext() )
+		{
+			it.fwd();
+			for ( int d = 0; d < n; d++ )
+			{
+				final int cellSize = grid.cellDimension( d );
+				cellMin[ d ] = rai.min( d ) + it.getLongPosition( d ) * cellSize;
+				cellMax[ d ] = cellMin[ d ] + cellSize - 1;
+			}
+			final Interval block = Intervals.intersect( new FinalInterval( cellMin, cellMax ), interval );
+			copy( Views.interval( rai, block ), Views.interval( target, block ) );
+		}
+		return target;
+	}
+
+	private static < T extends NativeType< T > > void copy( final RandomAccessibleInterval< T > source, final RandomAccessibleInterval< T > target )
+	{
+		final Cursor< T > sc = Views.flatIterable( source ).cursor();
+		final Cursor< T > tc = Views.flatIterable( target ).cursor();
+		while ( sc.hasNext() )
+			tc.next().set( sc.next() );
+	}
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Utility to load in parallel the cells of a cached cell image that cover a
+ * region, before the region is read voxel by voxel.
+ * <p>
+ * Reading a cold region of a BDV source through a random access triggers one
+ * blocking load per cell, in sequence. Prefetching the cells from several
+ * threads first turns this latency-bound series of small reads into parallel
+ * reads. The cells are loaded in the cache of the source, so that subsequent
+ * reads of the region only hit memory.
+ */
+public class CellPrefetcher
+{
+
+	private CellPrefetcher()
+	{}
+
+	/**
+	 * Submits the loading of the cells of the specified image that intersect
+	 * the specified interval.
+	 * <p>
+	 * If the image is not a cell image, for instance because it is a view on
+	 * one, nothing is done and an empty list is returned.
+	 *
+	 * @param rai
+	 *            the image to prefetch, typically obtained from
+	 *            {@link bdv.viewer.Source#getSource(int, int)}.
+	 * @param interval
+	 *            the interval to prefetch, in pixel coordinates of the image.
+	 * @param executor
+	 *            the executor to run the loading tasks on.
+	 * @param nTasks
+	 *            the maximal number of tasks to split the loading in.
+	 * @return the list of submitted tasks.
+	 */
+	public static List< Future< ? > > prefetch( final RandomAccessibleInterval< ? > rai, final Interval interval, final ExecutorService executor, final int nTasks )
+	{
+		return prefetch( rai, Collections.singletonList( interval ), executor, nTasks );
+	}
+
+	/**
+	 * Submits the loading of the cells of the specified image that intersect
+	 * at least one of the specified intervals. Only these cells are loaded,
+	 * not the ones of the bounding box of the intervals, so that sparse
+	 * regions such as the spots of a frame do not load the whole image.
+	 * <p>
+	 * If the image is not a cell image, for instance because it is a view on
+	 * one, nothing is done and an empty list is returned.
+	 *
+	 * @param rai
+	 *            the image to prefetch, typically obtained from
+	 *            {@link bdv.viewer.Source#getSource(int, int)}.
+	 * @param intervals
+	 *            the intervals to prefetch, in pixel coordinates of the image.
+	 * @param executor
+	 *            the executor to run the loading tasks on.
+	 * @param nTasks
+	 *            the maximal number of tasks to split the loading in.
+	 * @return the list of submitted tasks.
+	 */
+	public static List< Future< ? > > prefetch( final RandomAccessibleInterval< ? > rai, final Collection< ? extends Interval > intervals, final ExecutorService executor, final int nTasks )
+	{
+		if ( !( rai instanceof AbstractCellImg ) )
+			return Collections.emptyList();
+
+		final AbstractCellImg< ?, ?, ?, ? > img = ( AbstractCellImg< ?, ?, ?, ? > ) rai;
+		final RandomAccessibleInterval< ? > cells = img.getCells();
+		final CellGrid grid = img.getCellGrid();
+		final int n = grid.numDimensions();
+		final long[] gridDimensions = Intervals.dimensionsAsLongArray( cells );
+
+		/*
+		 * Indices of the cells touched by each interval, in the flattened
+		 * cell grid.
+		 */
+
+		long[] indices = new long[ 64 ];
+		int nIndices = 0;
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] position = new long[ n ];
+		for ( final Interval interval : intervals )
+		{
+			final Interval target = Intervals.intersect( rai, interval );
+			if ( Intervals.isEmpty( target ) )
+				continue;
+
+			for ( int d = 0; d < n; d++ )
+			{
+				final int cellSize = grid.cellDimension( d );
+				min[ d ] = ( target.min( d ) - rai.min( d ) ) / cellSize;
+				max[ d ] = ( target.max( d ) - rai.min( d ) ) / cellSize;
+			}
+			final LocalizingIntervalIterator it = new LocalizingIntervalIterator( min, max );
+			while ( it.hasNext() )
+			{
+				it.fwd();
+				it.localize( position );
+				if ( nIndices == indices.length )
+					indices = Arrays.copyOf( indices, 2 * nIndices );
+				indices[ nIndices++ ] = IntervalIndexer.positionToIndex( position, gridDimensions );
+			}
+		}
+
+		// Neighbouring spots share cells: load each one once, in grid order.
+		Arrays.sort( indices, 0, nIndices );
+		int nCells = 0;
+		for ( int i = 0; i < nIndices; i++ )
+			if ( nCells == 0 || indices[ i ] != indices[ nCells - 1 ] )
+				indices[ nCells++ ] = indices[ i ];
+		if ( nCells == 0 )
+			return Collections.emptyList();
+
+		/*
+		 * Split the cells in tasks. Getting a cell from the cell image loads
+		 * it in the cache if it is not already there.
+		 */
+
+		final long[] cellIndices = indices;
+		final int nt = Math.max( 1, Math.min( nTasks, nCells ) );
+		final int cellsPerTask = ( nCells + nt - 1 ) / nt;
+		final List< Future< ? > > tasks = new ArrayList<>( nt );
+		for ( int from = 0; from < nCells; from += cellsPerTask )
+		{
+			final int start = from;
+			final int end = Math.min( nCells, from + cellsPerTask );
+			tasks.add( executor.submit( () -> {
+				final RandomAccess< ? > ra = cells.randomAccess();
+				final long[] cellPosition = new long[ n ];
+				for ( int i = start; i < end; i++ )
+				{
+					IntervalIndexer.indexToPosition( cellIndices[ i ], gridDimensions, cellPosition );
+					ra.setPosition( cellPosition );
+					ra.get();
+				}
+			} ) );
+		}
+		return tasks;
+	}
+}
@@ -25,7 +25,22 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
@@ -34,6 +49,9 @@ import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import fiji.plugin.mamut.SourceSettings;
 import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.visualization.trackscheme.SpotImageUpdater;
 import net.imglib2.Interval;
@@ -54,14 +72,44 @@ import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
-public class SourceSpotImageUpdater< T extends RealType< T > > extends SpotImageUpdater
+/**
+ * Generates the thumbnails of spots displayed in TrackScheme, from the BDV
+ * sources.
+ * <p>
+ * Thumbnails are generated on a bounded pool of worker threads, and the
+ * encoded thumbnails are kept in an LRU cache. The entries of a spot are
+ * invalidated when it is modified in the model, if this instance is
+ * registered as a listener of the model. Optionally, thumbnails are also kept
+ * in a persistent {@link ThumbnailStore}, so that they survive the session.
+ */
+public class SourceSpotImageUpdater< T extends RealType< T > > extends SpotImageUpdater implements ModelChangeListener
 {
 
 	/** How much extra we capture around spot radius. */
 	private static final double RADIUS_FACTOR = 1.1;
 
+	/** Default maximal number of thumbnails in the cache. */
+	private static final int DEFAULT_CACHE_SIZE = 10000;
+
+	/**
+	 * Maximal number of spots of a TrackScheme row whose thumbnails are
+	 * generated together on a cache miss.
+	 */
+	private static final int MAX_ROW_PREFETCH = 256;
+
+	private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger( 0 );
+
 	private final List< SourceAndConverter< T > > sources;
-	private final ThreadGroup threadGroup;
+
+	private final ExecutorService executor;
+
+	private final Map< ThumbnailKey, String > cache;
+
+	private int maxCacheSize = DEFAULT_CACHE_SIZE;
+
+	private volatile ThumbnailStore store;
+
+	private volatile Model model;
 
 	@SuppressWarnings( "unchecked" )
 	public SourceSpotImageUpdater( final SourceSettings settings )
@@ -70,93 +118,375 @@ public class SourceSpotImageUpdater< T extends RealType< T > > extends SpotImage
 		@SuppressWarnings( "rawtypes" )
 		final List s = settings.getSources();
 		this.sources = s;
-		this.threadGroup = new ThreadGroup("Source spot image grabber threads");
+
+		final int nThreads = Math.max( 1, Math.min( 4, Runtime.getRuntime().availableProcessors() ) );
+		final String prefix = "Source spot image grabber " + INSTANCE_COUNT.incrementAndGet() + " thread ";
+		final AtomicInteger threadCount = new AtomicInteger( 0 );
+		final ThreadPoolExecutor tpe = new ThreadPoolExecutor( nThreads, nThreads, 30l, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			final Thread thread = new Thread( r, prefix + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		tpe.allowCoreThreadTimeOut( true );
+		this.executor = tpe;
+
+		// Access-ordered, so that the eldest entry is the least recently used.
+		this.cache = new LinkedHashMap< ThumbnailKey, String >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< ThumbnailKey, String > eldest )
+			{
+				return size() > maxCacheSize;
+			}
+		};
 	}
 
 	/**
 	 * Returns the image string of the given spot, based on the raw images
-	 * contained in the given model. For performance, the image at target frame
-	 * is stored for subsequent calls of this method. So it is a good idea to
-	 * group calls to this method for spots that belong to the same frame.
+	 * contained in the given model.
+	 * <p>
+	 * The image string is taken from the cache if the spot did not change
+	 * since it was last generated. Otherwise it is generated on a worker
+	 * thread, and this method blocks until it is ready.
+	 * <p>
+	 * TrackScheme requests thumbnails one spot at a time, row after row. If a
+	 * model was set with {@link #setModel(Model)}, a cache miss therefore
+	 * generates the thumbnails of the other visible spots of the same frame
+	 * along, in one batch, through
+	 * {@link #getImageStrings(Collection, double)}.
 	 */
 	@Override
 	public String getImageString( final Spot spot, final double radiusFactor )
 	{
-		final StringBuffer str = new StringBuffer();
+		final ThumbnailKey key = new ThumbnailKey( spot, radiusFactor );
+		synchronized ( cache )
+		{
+			final String str = cache.get( key );
+			if ( null != str )
+				return str;
+		}
 
-		final Thread th = new Thread(threadGroup, "Spot Image grabber for " + spot) {
+		final String stored = getStored( key );
+		if ( null != stored )
+			return stored;
 
-			@Override
-			public void run() {
-
-				// Retrieve frame
-				final int frame = spot.getFeature(Spot.FRAME).intValue();
-				// Retrieve source ID
-				final Double si = spot.getFeature(SpotSourceIdAnalyzerFactory.SOURCE_ID);
-				if (null == si) {
-					return;
-				}
-
-				final int sourceID = si.intValue();
-				final Source<T> source = sources.get(sourceID).getSpimSource();
-				final RandomAccessibleInterval<T> img = source.getSource(frame, 0);
-
-				// Get spot coords
-				final AffineTransform3D sourceToGlobal = new AffineTransform3D();
-				source.getSourceTransform( frame, 0, sourceToGlobal );
-				final Point roundedSourcePos = new Point(3);
-				sourceToGlobal.applyInverse(new Round<>(roundedSourcePos), spot);
-				final long x = roundedSourcePos.getLongPosition(0);
-				final long y = roundedSourcePos.getLongPosition(1);
-				final long z = Math.max(img.min(2), Math.min(img.max(2), roundedSourcePos.getLongPosition(2)));
-				final long r = ( long ) Math.ceil( radiusFactor * RADIUS_FACTOR * spot.getFeature( Spot.RADIUS ).doubleValue() / Affine3DHelpers.extractScale( sourceToGlobal, 0 ) );
-
-				// Extract central slice
-				final IntervalView<T> slice = Views.hyperSlice(img, 2, z);
-
-				// Crop
-				final Interval cropInterval = Intervals.intersect(slice, Intervals.createMinMax(x - r, y - r, x + r, y + r));
-
-				final BufferedImage image;
-				if (isEmpty(cropInterval))
-					image = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
-				else {
-					final IntervalView<T> crop = Views.zeroMin(Views.interval(slice, cropInterval));
-					final int width = (int) crop.dimension(0);
-					final int height = (int) crop.dimension(1);
-					image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-					final byte[] imgData = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-					final ArrayImg< UnsignedByteType, ByteArray > target = ArrayImgs.unsignedBytes( imgData, width, height );
-
-					final double minValue = Min.findMin(Views.iterable(crop)).get().getRealDouble();
-					final double maxValue = Max.findMax(Views.iterable(crop)).get().getRealDouble();
-					final RealUnsignedByteConverter< T > converter = new RealUnsignedByteConverter<>( minValue, maxValue );
-
-					new IterableIntervalProjector2D<>( 0, 1, crop, target, converter ).map();
-				}
-
-				// Convert to string
-				final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				String baf;
-				try {
-					ImageIO.write(image, "png", bos);
-					baf = Base64.encodeBytes(bos.toByteArray());
-				} catch (final IOException e) {
-					e.printStackTrace();
-					baf = "";
-				}
-				str.append(baf);
+		final Model m = model;
+		if ( null != m )
+		{
+			final List< Spot > row = new ArrayList<>();
+			row.add( spot );
+			for ( final Spot other : m.getSpots().iterable( spot.getFeature( Spot.FRAME ).intValue(), true ) )
+			{
+				if ( row.size() >= MAX_ROW_PREFETCH )
+					break;
+				if ( other != spot )
+					row.add( other );
 			}
+			final String str = getImageStrings( row, radiusFactor ).get( spot );
+			return null == str ? "" : str;
+		}
 
-		};
+		final Future< String > future = executor.submit( () -> createImageString( spot, radiusFactor ) );
+		try
+		{
+			final String str = future.get();
+			put( key, str );
+			return str;
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			return "";
+		}
+	}
+
+	/**
+	 * Returns the image strings of the given spots.
+	 * <p>
+	 * The spots whose thumbnail is not cached are grouped by frame and
+	 * source, so that the image and transform of each group are fetched once.
+	 * All the thumbnails are then generated in parallel on the worker
+	 * threads. This method blocks until they are all ready.
+	 *
+	 * @param spots
+	 *            the spots to generate the thumbnails of.
+	 * @param radiusFactor
+	 *            the factor by which to scale the spot radius to get the
+	 *            thumbnail size.
+	 * @return a new map from spot to image string, iterated in the order of
+	 *         the specified spots.
+	 */
+	public Map< Spot, String > getImageStrings( final Collection< Spot > spots, final double radiusFactor )
+	{
+		final Map< Spot, String > strings = new LinkedHashMap<>( spots.size() );
+
+		/*
+		 * Cache hits.
+		 */
+
+		synchronized ( cache )
+		{
+			for ( final Spot spot : spots )
+				strings.put( spot, cache.get( new ThumbnailKey( spot, radiusFactor ) ) );
+		}
+
+		/*
+		 * Store hits, and group the others by frame and source. The store is
+		 * read outside of the cache lock, not to block single lookups.
+		 */
+
+		final Map< Long, List< Spot > > groups = new LinkedHashMap<>();
+		for ( final Map.Entry< Spot, String > entry : strings.entrySet() )
+		{
+			if ( null != entry.getValue() )
+				continue;
+
+			final Spot spot = entry.getKey();
+			final String stored = getStored( new ThumbnailKey( spot, radiusFactor ) );
+			if ( null != stored )
+			{
+				entry.setValue( stored );
+				continue;
+			}
+
+			final Double si = spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID );
+			if ( null == si )
+			{
+				entry.setValue( "" );
+				continue;
+			}
+			final long frame = spot.getFeature( Spot.FRAME ).longValue();
+			final Long key = Long.valueOf( ( frame << 16 ) + si.longValue() );
+			groups.computeIfAbsent( key, k -> new ArrayList<>() ).add( spot );
+		}
+
+		/*
+		 * Fetch the image and transform once per group, and render the
+		 * thumbnails in parallel.
+		 */
+
+		final Map< Spot, Future< String > > futures = new LinkedHashMap<>();
+		for ( final List< Spot > group : groups.values() )
+		{
+			final Spot first = group.get( 0 );
+			final int frame = first.getFeature( Spot.FRAME ).intValue();
+			final int sourceID = first.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID ).intValue();
+			final Source< T > source = sources.get( sourceID ).getSpimSource();
+			final RandomAccessibleInterval< T > img = source.getSource( frame, 0 );
+			final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+			source.getSourceTransform( frame, 0, sourceToGlobal );
+
+			for ( final Spot spot : group )
+				futures.put( spot, executor.submit( () -> createImageString( spot, radiusFactor, img, sourceToGlobal ) ) );
+		}
+
+		for ( final Map.Entry< Spot, Future< String > > entry : futures.entrySet() )
+		{
+			final Spot spot = entry.getKey();
+			String str;
+			try
+			{
+				str = entry.getValue().get();
+				put( new ThumbnailKey( spot, radiusFactor ), str );
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				e.printStackTrace();
+				str = "";
+			}
+			strings.put( spot, str );
+		}
+		return strings;
+	}
+
+	/**
+	 * Sets the persistent store thumbnails are read from and written to, in
+	 * addition to the in-memory cache. Can be <code>null</code>, the default,
+	 * to keep thumbnails in memory only.
+	 */
+	public void setStore( final ThumbnailStore store )
+	{
+		this.store = store;
+	}
+
+	public ThumbnailStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Sets the model whose spots are used to generate the thumbnails of a
+	 * whole TrackScheme row at once. Can be <code>null</code>, the default,
+	 * to generate thumbnails one spot at a time.
+	 */
+	public void setModel( final Model model )
+	{
+		this.model = model;
+	}
+
+	/**
+	 * Returns the thumbnail of the specified key from the persistent store,
+	 * and puts it in the cache, or <code>null</code> if it is not there.
+	 */
+	private String getStored( final ThumbnailKey key )
+	{
+		final ThumbnailStore s = store;
+		if ( null == s )
+			return null;
+		final String str = s.get( key.storeKey() );
+		if ( null != str )
+		{
+			synchronized ( cache )
+			{
+				cache.put( key, str );
+			}
+		}
+		return str;
+	}
 
-		th.start();
+	private void put( final ThumbnailKey key, final String str )
+	{
+		synchronized ( cache )
+		{
+			cache.put( key, str );
+		}
+		final ThumbnailStore s = store;
+		if ( null != s && !str.isEmpty() )
+			s.put( key.storeKey(), str );
+	}
+
+	/**
+	 * Invalidates the cached thumbnails of the spots modified in the model.
+	 */
+	@Override
+	public void modelChanged( final ModelChangeEvent event )
+	{
+		if ( event.getEventID() != ModelChangeEvent.MODEL_MODIFIED )
+			return;
+
+		final Set< Integer > ids = new HashSet<>( event.getSpots().size() );
+		for ( final Spot spot : event.getSpots() )
+			ids.add( Integer.valueOf( spot.ID() ) );
+		invalidate( ids );
+	}
+
+	/**
+	 * Removes the cached thumbnails of the spots with the specified IDs.
+	 */
+	public void invalidate( final Collection< Integer > spotIDs )
+	{
+		if ( spotIDs.isEmpty() )
+			return;
+		synchronized ( cache )
+		{
+			cache.keySet().removeIf( key -> spotIDs.contains( Integer.valueOf( key.spotID ) ) );
+		}
+	}
+
+	/**
+	 * Empties the thumbnail cache.
+	 */
+	public void clearCache()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Sets the maximal number of thumbnails kept in the cache. The least
+	 * recently used are discarded first.
+	 */
+	public void setMaxCacheSize( final int maxCacheSize )
+	{
+		synchronized ( cache )
+		{
+			this.maxCacheSize = maxCacheSize;
+			final Iterator< ThumbnailKey > it = cache.keySet().iterator();
+			while ( cache.size() > maxCacheSize && it.hasNext() )
+			{
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	public int getMaxCacheSize()
+	{
+		return maxCacheSize;
+	}
+
+	/**
+	 * Generates the image string of the given spot.
+	 */
+	private String createImageString( final Spot spot, final double radiusFactor )
+	{
+		// Retrieve frame
+		final int frame = spot.getFeature(Spot.FRAME).intValue();
+		// Retrieve source ID
+		final Double si = spot.getFeature(SpotSourceIdAnalyzerFactory.SOURCE_ID);
+		if (null == si) {
+			return "";
+		}
+
+		final int sourceID = si.intValue();
+		final Source<T> source = sources.get(sourceID).getSpimSource();
+		final RandomAccessibleInterval<T> img = source.getSource(frame, 0);
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		source.getSourceTransform( frame, 0, sourceToGlobal );
+		return createImageString( spot, radiusFactor, img, sourceToGlobal );
+	}
+
+	/**
+	 * Generates the image string of the given spot, from the full-resolution
+	 * image of its frame and source.
+	 */
+	private String createImageString( final Spot spot, final double radiusFactor, final RandomAccessibleInterval< T > img, final AffineTransform3D sourceToGlobal )
+	{
+		// Get spot coords
+		final Point roundedSourcePos = new Point(3);
+		sourceToGlobal.applyInverse(new Round<>(roundedSourcePos), spot);
+		final long x = roundedSourcePos.getLongPosition(0);
+		final long y = roundedSourcePos.getLongPosition(1);
+		final long z = Math.max(img.min(2), Math.min(img.max(2), roundedSourcePos.getLongPosition(2)));
+		final long r = ( long ) Math.ceil( radiusFactor * RADIUS_FACTOR * spot.getFeature( Spot.RADIUS ).doubleValue() / Affine3DHelpers.extractScale( sourceToGlobal, 0 ) );
+
+		// Extract central slice
+		final IntervalView<T> slice = Views.hyperSlice(img, 2, z);
+
+		// Crop
+		final Interval cropInterval = Intervals.intersect(slice, Intervals.createMinMax(x - r, y - r, x + r, y + r));
+
+		final BufferedImage image;
+		if (isEmpty(cropInterval))
+			image = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+		else {
+			final IntervalView<T> crop = Views.zeroMin(Views.interval(slice, cropInterval));
+			final int width = (int) crop.dimension(0);
+			final int height = (int) crop.dimension(1);
+			image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+			final byte[] imgData = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+			final ArrayImg< UnsignedByteType, ByteArray > target = ArrayImgs.unsignedBytes( imgData, width, height );
+
+			final double minValue = Min.findMin(Views.iterable(crop)).get().getRealDouble();
+			final double maxValue = Max.findMax(Views.iterable(crop)).get().getRealDouble();
+			final RealUnsignedByteConverter< T > converter = new RealUnsignedByteConverter<>( minValue, maxValue );
+
+			new IterableIntervalProjector2D<>( 0, 1, crop, target, converter ).map();
+		}
+
+		// Convert to string
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			th.join();
-		} catch (final InterruptedException e) {
+			ImageIO.write(image, "png", bos);
+			return Base64.encodeBytes(bos.toByteArray());
+		} catch (final IOException e) {
 			e.printStackTrace();
+			return "";
 		}
-		return str.toString();
 	}
 
 	private static final boolean isEmpty(final Interval interval) {
@@ -167,4 +497,65 @@ public class SourceSpotImageUpdater< T extends RealType< T > > extends SpotImage
 		return false;
 	}
 
+	/**
+	 * Key of a thumbnail in the cache. Includes everything the thumbnail
+	 * depends on, so that a spot moved or resized without notification does
+	 * not return a stale thumbnail.
+	 */
+	private static final class ThumbnailKey
+	{
+
+		private final int spotID;
+
+		private final double radius;
+
+		private final double radiusFactor;
+
+		private final int frame;
+
+		private final int sourceID;
+
+		private final int positionHash;
+
+		private ThumbnailKey( final Spot spot, final double radiusFactor )
+		{
+			this.spotID = spot.ID();
+			this.radius = spot.getFeature( Spot.RADIUS ).doubleValue();
+			this.radiusFactor = radiusFactor;
+			this.frame = spot.getFeature( Spot.FRAME ).intValue();
+			final Double si = spot.getFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID );
+			this.sourceID = null == si ? -1 : si.intValue();
+			this.positionHash = Objects.hash( spot.getDoublePosition( 0 ), spot.getDoublePosition( 1 ), spot.getDoublePosition( 2 ) );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof ThumbnailKey ) )
+				return false;
+			final ThumbnailKey o = ( ThumbnailKey ) obj;
+			return spotID == o.spotID
+					&& radius == o.radius
+					&& radiusFactor == o.radiusFactor
+					&& frame == o.frame
+					&& sourceID == o.sourceID
+					&& positionHash == o.positionHash;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash( spotID, radius, radiusFactor, frame, sourceID, positionHash );
+		}
+
+		/**
+		 * Returns a 64-bit key for the persistent store. The spot ID is in
+		 * the high bits, the hash of the geometry in the low bits.
+		 */
+		private long storeKey()
+		{
+			final int geometryHash = Objects.hash( radius, radiusFactor, frame, sourceID, positionHash );
+			return ( ( long ) spotID << 32 ) | ( geometryHash & 0xffffffffl );
+		}
+	}
 }
@@ -0,0 +1,513 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * A persistent store of encoded spot thumbnails, kept in a single sidecar
+ * file next to the MaMuT file.
+ * <p>
+ * The file is a header followed by records appended one after the other.
+ * Each record is a 64-bit key, the length of the thumbnail string and the
+ * string itself, in ASCII. The key has the spot ID in its high 32 bits and a
+ * hash of the geometry the thumbnail depends on in its low 32 bits, so that
+ * the thumbnail of a spot that was modified is not found anymore. Only the
+ * last thumbnail stored for a spot ID is live; the records of previous ones,
+ * and of spots dropped with {@link #retain(Collection)}, are superseded.
+ * <p>
+ * The file is indexed when opened, and memory-mapped for reading in windows
+ * of at most {@value #WINDOW_SIZE} bytes that start at record boundaries, so
+ * that its size is not limited to 2 GB. It is only created when the first
+ * thumbnails are written. New thumbnails are kept in memory and appended
+ * lazily, when enough of them accumulated or when {@link #flush()} is called,
+ * after what the last window is remapped. The file is rewritten with the live
+ * records only when it holds more superseded records than live ones.
+ */
+public class ThumbnailStore
+{
+
+	/** File name suffix of the thumbnail store, replacing ".xml". */
+	public static final String SUFFIX = ".thumbnails";
+
+	private static final long MAGIC = 0x4d614d7554544e31l; // "MaMuTTN1"
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final int RECORD_HEADER_SIZE = 12;
+
+	/** Number of pending thumbnails above which they are written. */
+	private static final int FLUSH_THRESHOLD = 512;
+
+	/** Maximal size of a mapped window of the file. */
+	private static final long WINDOW_SIZE = 1l << 30;
+
+	/**
+	 * How many times to try replacing the file after a rewrite. On Windows, a
+	 * mapped file cannot be replaced until its mappings are garbage
+	 * collected.
+	 */
+	private static final int MAX_REPLACE_ATTEMPTS = 10;
+
+	private final Logger logger;
+
+	private File file;
+
+	/** Key &rarr; offset of the record in the file. */
+	private final Map< Long, Long > index = new HashMap<>();
+
+	/** Spot ID &rarr; key of its live thumbnail, in the file or pending. */
+	private final Map< Integer, Long > spotKeys = new HashMap<>();
+
+	private final Map< Long, String > pending = new LinkedHashMap<>();
+
+	/** Offsets of the start of the windows, at record boundaries. */
+	private final List< Long > windowStarts = new ArrayList<>();
+
+	/** The mapped windows. The last one might not be mapped yet. */
+	private final List< MappedByteBuffer > windows = new ArrayList<>();
+
+	/**
+	 * Offset of the end of the valid records, 0 if there is no valid file to
+	 * append to.
+	 */
+	private long end;
+
+	private int nSuperseded;
+
+	/** Whether writing failed once, after what thumbnails are not stored anymore. */
+	private boolean failed;
+
+	private ThumbnailStore( final File file, final Logger logger ) throws IOException
+	{
+		this.file = file;
+		this.logger = logger;
+		load();
+	}
+
+	/**
+	 * Opens the thumbnail store of the specified MaMuT file. The store file
+	 * is not created until thumbnails are written to it.
+	 *
+	 * @param mamutFile
+	 *            the MaMuT XML file.
+	 * @param logger
+	 *            the logger to report read and write errors to.
+	 * @return the store.
+	 * @throws IOException
+	 *             if the store file exists but cannot be read.
+	 */
+	public static ThumbnailStore open( final File mamutFile, final Logger logger ) throws IOException
+	{
+		return new ThumbnailStore( getStoreFile( mamutFile ), logger );
+	}
+
+	/**
+	 * Returns the file of the thumbnail store of the specified MaMuT file.
+	 */
+	public static File getStoreFile( final File mamutFile )
+	{
+		String name = mamutFile.getName();
+		if ( name.toLowerCase().endsWith( ".xml" ) )
+			name = name.substring( 0, name.length() - 4 );
+		return new File( mamutFile.getParentFile(), name + SUFFIX );
+	}
+
+	/**
+	 * Returns the thumbnail stored with the specified key, or
+	 * <code>null</code> if there is none.
+	 */
+	public synchronized String get( final long key )
+	{
+		final String str = pending.get( Long.valueOf( key ) );
+		if ( null != str )
+			return str;
+
+		final Long offset = index.get( Long.valueOf( key ) );
+		if ( null == offset )
+			return null;
+
+		try
+		{
+			final int w = getWindow( offset.longValue() );
+			final ByteBuffer b = getMapping( w ).duplicate();
+			final int position = ( int ) ( offset.longValue() - windowStarts.get( w ).longValue() );
+			final byte[] bytes = new byte[ b.getInt( position + 8 ) ];
+			b.position( position + RECORD_HEADER_SIZE );
+			b.get( bytes );
+			return new String( bytes, StandardCharsets.US_ASCII );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			logger.error( "Could not read thumbnail from " + file + ":\n" + e.getMessage() + '\n' );
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the specified thumbnail, superseding the previous thumbnail of
+	 * the same spot. It is written to disk later.
+	 */
+	public synchronized void put( final long key, final String thumbnail )
+	{
+		if ( failed )
+			return;
+
+		pending.put( Long.valueOf( key ), thumbnail );
+		supersede( key );
+		if ( pending.size() >= FLUSH_THRESHOLD )
+		{
+			try
+			{
+				flush();
+			}
+			catch ( final IOException e )
+			{
+				// Do not retry on every thumbnail, e.g. in a read-only folder.
+				failed = true;
+				pending.clear();
+				logger.error( "Could not write thumbnails to " + file + ", they will not be stored:\n" + e.getMessage() + '\n' );
+			}
+		}
+	}
+
+	/**
+	 * Drops the thumbnails of the spots whose ID is not in the specified
+	 * collection, typically because they were removed from the model.
+	 *
+	 * @param spotIDs
+	 *            the IDs of the spots to keep.
+	 */
+	public synchronized void retain( final Collection< Integer > spotIDs )
+	{
+		final Iterator< Map.Entry< Integer, Long > > it = spotKeys.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< Integer, Long > entry = it.next();
+			if ( spotIDs.contains( entry.getKey() ) )
+				continue;
+
+			it.remove();
+			drop( entry.getValue() );
+		}
+	}
+
+	/**
+	 * Writes the pending thumbnails to disk, creating the file if needed.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		if ( pending.isEmpty() && nSuperseded <= index.size() )
+			return;
+
+		if ( end < HEADER_SIZE || nSuperseded > index.size() )
+		{
+			rewrite();
+			return;
+		}
+
+		final int lastWindow = windowStarts.size() - 1;
+		try (final RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+		{
+			// Drop a truncated record left by an interrupted write. It is
+			// past the mapped windows.
+			if ( raf.length() > end )
+				raf.setLength( end );
+			final FileChannel out = raf.getChannel();
+			out.position( end );
+			for ( final Map.Entry< Long, String > entry : pending.entrySet() )
+			{
+				final int length = write( out, entry.getKey().longValue(), entry.getValue() );
+				if ( null != index.put( entry.getKey(), Long.valueOf( end ) ) )
+					nSuperseded++;
+				addRecord( length );
+			}
+		}
+		pending.clear();
+
+		// The last window grew: map it again when read.
+		if ( windows.size() > lastWindow )
+			windows.subList( lastWindow, windows.size() ).clear();
+	}
+
+	/**
+	 * Writes the pending thumbnails, then moves this store to the sidecar
+	 * file of the specified MaMuT file, keeping the current file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be copied.
+	 */
+	public synchronized void relocate( final File mamutFile ) throws IOException
+	{
+		final File target = getStoreFile( mamutFile );
+		flush();
+		if ( target.getAbsoluteFile().equals( file.getAbsoluteFile() ) )
+			return;
+
+		if ( file.exists() )
+			Files.copy( file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		else
+			// Nothing stored yet: do not inherit the thumbnails of an older file.
+			Files.deleteIfExists( target.toPath() );
+		file = target;
+		load();
+	}
+
+	/**
+	 * Writes the pending thumbnails and releases the mapped windows.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			windows.clear();
+		}
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Indexes the file. A missing or invalid file yields an empty store, and
+	 * is left untouched until thumbnails are written.
+	 */
+	private void load() throws IOException
+	{
+		windows.clear();
+		windowStarts.clear();
+		index.clear();
+		spotKeys.clear();
+		pending.clear();
+		nSuperseded = 0;
+		end = 0;
+		if ( !file.isFile() )
+			return;
+
+		final long length = file.length();
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ) ))
+		{
+			if ( length < HEADER_SIZE || in.readLong() != MAGIC )
+				return;
+
+			end = HEADER_SIZE;
+			final byte[] skip = new byte[ 1 << 16 ];
+			while ( end + RECORD_HEADER_SIZE <= length )
+			{
+				final long key = in.readLong();
+				final int size = in.readInt();
+				if ( size < 0 || end + RECORD_HEADER_SIZE + size > length )
+					break;
+
+				for ( int remaining = size; remaining > 0; remaining -= skip.length )
+					in.readFully( skip, 0, Math.min( remaining, skip.length ) );
+				if ( null != index.put( Long.valueOf( key ), Long.valueOf( end ) ) )
+					nSuperseded++;
+				supersede( key );
+				addRecord( size );
+			}
+		}
+		catch ( final EOFException e )
+		{
+			// Truncated record, dropped at the next write.
+		}
+	}
+
+	/**
+	 * Accounts for a record of the specified length written at the current
+	 * end of the file, starting a new window if it does not fit in the last
+	 * one.
+	 */
+	private void addRecord( final int length )
+	{
+		final long recordEnd = end + RECORD_HEADER_SIZE + length;
+		if ( windowStarts.isEmpty() || recordEnd - windowStarts.get( windowStarts.size() - 1 ).longValue() > WINDOW_SIZE )
+			windowStarts.add( Long.valueOf( end ) );
+		end = recordEnd;
+	}
+
+	/**
+	 * Returns the index of the window that holds the record at the specified
+	 * offset.
+	 */
+	private int getWindow( final long offset )
+	{
+		final int i = Collections.binarySearch( windowStarts, Long.valueOf( offset ) );
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/**
+	 * Returns the mapping of the specified window, mapping the windows up to
+	 * it if needed.
+	 */
+	private MappedByteBuffer getMapping( final int w ) throws IOException
+	{
+		if ( w < windows.size() )
+			return windows.get( w );
+
+		try (final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+		{
+			// Mappings stay valid after the channel is closed.
+			while ( windows.size() <= w )
+			{
+				final int i = windows.size();
+				final long start = windowStarts.get( i ).longValue();
+				final long stop = i + 1 < windowStarts.size() ? windowStarts.get( i + 1 ).longValue() : end;
+				windows.add( channel.map( FileChannel.MapMode.READ_ONLY, start, stop - start ) );
+			}
+		}
+		return windows.get( w );
+	}
+
+	/**
+	 * Rewrites the file with the live records and the pending ones only.
+	 */
+	private void rewrite() throws IOException
+	{
+		final List< Long > live = new ArrayList<>( index.values() );
+		Collections.sort( live );
+
+		final File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
+		try (final RandomAccessFile raf = new RandomAccessFile( tmp, "rw" ))
+		{
+			raf.setLength( 0 );
+			raf.writeLong( MAGIC );
+			final FileChannel out = raf.getChannel();
+			for ( final Long offset : live )
+			{
+				final int w = getWindow( offset.longValue() );
+				final ByteBuffer record = getMapping( w ).duplicate();
+				final int position = ( int ) ( offset.longValue() - windowStarts.get( w ).longValue() );
+				record.limit( position + RECORD_HEADER_SIZE + record.getInt( position + 8 ) );
+				record.position( position );
+				while ( record.hasRemaining() )
+					out.write( record );
+			}
+			for ( final Map.Entry< Long, String > entry : pending.entrySet() )
+				write( out, entry.getKey().longValue(), entry.getValue() );
+		}
+
+		replaceFile( tmp );
+		load();
+	}
+
+	/**
+	 * Replaces the file with the specified one, after releasing the mapped
+	 * windows.
+	 */
+	private void replaceFile( final File tmp ) throws IOException
+	{
+		windows.clear();
+		for ( int attempt = 1;; attempt++ )
+		{
+			try
+			{
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+				return;
+			}
+			catch ( final FileSystemException e )
+			{
+				// Windows: the dropped mappings are only released when
+				// garbage collected.
+				if ( attempt >= MAX_REPLACE_ATTEMPTS )
+				{
+					Files.deleteIfExists( tmp.toPath() );
+					throw e;
+				}
+				System.gc();
+				try
+				{
+					Thread.sleep( 50l * attempt );
+				}
+				catch ( final InterruptedException ie )
+				{
+					Thread.currentThread().interrupt();
+					Files.deleteIfExists( tmp.toPath() );
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes the specified key the live one of its spot, and drops the
+	 * previous one.
+	 */
+	private void supersede( final long key )
+	{
+		final Long previous = spotKeys.put( Integer.valueOf( ( int ) ( key >>> 32 ) ), Long.valueOf( key ) );
+		if ( null != previous && previous.longValue() != key )
+			drop( previous );
+	}
+
+	private void drop( final Long key )
+	{
+		pending.remove( key );
+		if ( null != index.remove( key ) )
+			nSuperseded++;
+	}
+
+	private static int write( final FileChannel out, final long key, final String thumbnail ) throws IOException
+	{
+		final byte[] bytes = thumbnail.getBytes( StandardCharsets.US_ASCII );
+		final ByteBuffer record = ByteBuffer.allocate( RECORD_HEADER_SIZE + bytes.length );
+		record.putLong( key ).putInt( bytes.length ).put( bytes ).flip();
+		while ( record.hasRemaining() )
+			out.write( record );
+		return bytes.length;
+	}
+}
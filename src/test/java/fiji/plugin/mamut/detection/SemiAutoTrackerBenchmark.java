@@ -0,0 +1,251 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.detection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import bdv.viewer.SourceAndConverter;
+import fiji.plugin.mamut.feature.spot.SpotSourceIdAnalyzerFactory;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Measures the speed and accuracy of semi-automatic tracking on synthetic
+ * blobs with known trajectories.
+ * <p>
+ * Every blob is seeded at its true position in the first frame, then all the
+ * seeds are tracked to the last frame with the {@link MultiSeedSemiAutoTracker}.
+ * The benchmark reports the number of steps per second, the time spent
+ * loading image cells versus detecting, and how many of the spots found match
+ * the ground truth. The data description can be passed as first argument.
+ */
+public class SemiAutoTrackerBenchmark
+{
+
+	private static final String DEFAULT_DATA = "x=256 y=256 z=64 sz=2 t=30 n=20 r=4 v=2 levels=3 latency=2 seed=1.blobs";
+
+	private static final int N_THREADS = Runtime.getRuntime().availableProcessors();
+
+	public static void main( final String[] args ) throws InterruptedException
+	{
+		final String description = args.length > 0 ? args[ 0 ] : DEFAULT_DATA;
+		final SyntheticBlobData data = SyntheticBlobData.tryCreate( description );
+		if ( null == data )
+		{
+			System.err.println( "Cannot parse data description: " + description );
+			return;
+		}
+		System.out.println( "Data: " + description );
+
+		/*
+		 * Seed every blob at its true position in the first frame.
+		 */
+
+		final Model model = new Model();
+		final List< Spot > seeds = new ArrayList<>( data.trajectories.length );
+		model.beginUpdate();
+		try
+		{
+			for ( final double[][] trajectory : data.trajectories )
+			{
+				final double[] pos = trajectory[ 0 ];
+				final Spot seed = new Spot( pos[ 0 ], pos[ 1 ], pos[ 2 ], data.radius, -1. );
+				seed.putFeature( SpotSourceIdAnalyzerFactory.SOURCE_ID, 0. );
+				model.addSpotTo( seed, 0 );
+				seeds.add( seed );
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		/*
+		 * Track, timing the detection tasks.
+		 */
+
+		final ExecutorService pool = Executors.newFixedThreadPool( N_THREADS );
+		final TimingExecutor executor = new TimingExecutor( pool );
+		final List< SourceAndConverter< UnsignedShortType > > sources = Collections.singletonList( data.getSource() );
+		final MultiSeedSemiAutoTracker< UnsignedShortType > tracker = new MultiSeedSemiAutoTracker<>( model, new SelectionModel( model ), sources, executor, Logger.VOID_LOGGER );
+		tracker.setParameters( 0.2, 1.5, data.nFrames - 1 );
+		tracker.setSeeds( seeds );
+
+		final long start = System.nanoTime();
+		if ( !tracker.checkInput() || !tracker.process() )
+		{
+			System.err.println( tracker.getErrorMessage() );
+			pool.shutdown();
+			return;
+		}
+		final long end = System.nanoTime();
+		pool.shutdown();
+		pool.awaitTermination( 1, TimeUnit.MINUTES );
+
+		int nSteps = 0;
+		for ( final MultiSeedSemiAutoTracker.Seed result : tracker.getResults() )
+			nSteps += result.getNSpotsAdded();
+
+		/*
+		 * Speed.
+		 */
+
+		final double wallTime = ( end - start ) / 1e9;
+		final double taskTime = executor.taskTime.get() / 1e9;
+		final double ioTime = data.detectionLoadTime.get() / 1e9;
+		final double backgroundIoTime = data.otherLoadTime.get() / 1e9;
+		System.out.println( String.format( "Tracked %d steps in %.2f s: %.1f steps/s, %d threads.", nSteps, wallTime, nSteps / wallTime, N_THREADS ) );
+		System.out.println( String.format( "Per step: %.2f ms in detection tasks, of which %.2f ms loading cells and %.2f ms detecting.",
+				1000 * taskTime / nSteps, 1000 * ioTime / nSteps, 1000 * ( taskTime - ioTime ) / nSteps ) );
+		System.out.println( String.format( "Cells loaded: %d. Loading time off the detection threads (prefetch): %.2f s.",
+				data.nCellsLoaded.get(), backgroundIoTime ) );
+		System.out.println( tracker.getSummary() );
+
+		/*
+		 * Accuracy against ground truth.
+		 */
+
+		final TrackModel trackModel = model.getTrackModel();
+		int nMatched = 0;
+		int nExpected = 0;
+		double sumError = 0.;
+		for ( int b = 0; b < seeds.size(); b++ )
+		{
+			final double[][] trajectory = data.trajectories[ b ];
+			nExpected += trajectory.length - 1;
+			Spot spot = seeds.get( b );
+			for ( int t = 1; t < trajectory.length; t++ )
+			{
+				spot = getSuccessor( trackModel, spot );
+				if ( null == spot )
+					break;
+
+				final double[] truth = trajectory[ t ];
+				double d2 = 0.;
+				for ( int d = 0; d < 3; d++ )
+				{
+					final double dx = spot.getDoublePosition( d ) - truth[ d ];
+					d2 += dx * dx;
+				}
+				if ( d2 > data.radius * data.radius )
+					break;
+
+				nMatched++;
+				sumError += Math.sqrt( d2 );
+			}
+		}
+		System.out.println( String.format( "Accuracy: %d / %d ground-truth positions recovered (%.1f %%), mean localization error %.2f.",
+				nMatched, nExpected, 100. * nMatched / nExpected, nMatched == 0 ? Double.NaN : sumError / nMatched ) );
+	}
+
+	private static Spot getSuccessor( final TrackModel trackModel, final Spot spot )
+	{
+		final int frame = spot.getFeature( Spot.FRAME ).intValue();
+		final Set< DefaultWeightedEdge > edges = trackModel.edgesOf( spot );
+		for ( final DefaultWeightedEdge edge : edges )
+		{
+			final Spot target = trackModel.getEdgeTarget( edge );
+			if ( target != spot && target.getFeature( Spot.FRAME ).intValue() > frame )
+				return target;
+		}
+		return null;
+	}
+
+	/**
+	 * Executor that marks its threads as detection threads and sums the time
+	 * spent in its tasks.
+	 */
+	private static final class TimingExecutor extends AbstractExecutorService
+	{
+
+		private final ExecutorService delegate;
+
+		private final AtomicLong taskTime = new AtomicLong();
+
+		private TimingExecutor( final ExecutorService delegate )
+		{
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void execute( final Runnable command )
+		{
+			delegate.execute( () -> {
+				final long start = System.nanoTime();
+				SyntheticBlobData.IN_DETECTION.set( Boolean.TRUE );
+				try
+				{
+					command.run();
+				}
+				finally
+				{
+					SyntheticBlobData.IN_DETECTION.set( Boolean.FALSE );
+					taskTime.addAndGet( System.nanoTime() - start );
+				}
+			} );
+		}
+
+		@Override
+		public void shutdown()
+		{
+			delegate.shutdown();
+		}
+
+		@Override
+		public List< Runnable > shutdownNow()
+		{
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown()
+		{
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated()
+		{
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination( final long timeout, final TimeUnit unit ) throws InterruptedException
+		{
+			return delegate.awaitTermination( timeout, unit );
+		}
+	}
+}
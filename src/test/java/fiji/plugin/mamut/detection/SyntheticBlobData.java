@@ -0,0 +1,319 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.detection;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.display.RealARGBConverter;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * Synthetic multi-resolution source made of Gaussian blobs moving on known
+ * trajectories, to benchmark semi-automatic tracking.
+ * <p>
+ * As for {@link fiji.plugin.mamut.util.DummySpimData}, the data is encoded in
+ * a description. E.g.,
+ * "{@code x=256 y=256 z=64 sz=2 t=30 n=20 r=4 v=2 levels=3 latency=2 seed=1.blobs}"
+ * means {@code 256x256x64} images with calibration {@code 1x1x2}, for 30
+ * timepoints, with 20 blobs of radius 4 moving at 2 units per frame, 3
+ * resolution levels, and a simulated latency of 2 ms per cell loaded. Images
+ * are generated lazily, cell by cell, in a cached cell image as BDV sources
+ * are. The loading time is recorded, split between the threads marked as
+ * detection threads and the others.
+ */
+public class SyntheticBlobData
+{
+
+	static final String BLOBS = ".blobs";
+
+	private static final int CELL_SIZE = 32;
+
+	private static final double BACKGROUND = 100.;
+
+	private static final double AMPLITUDE = 1000.;
+
+	/** Whether the current thread runs detection, for timing. */
+	static final ThreadLocal< Boolean > IN_DETECTION = ThreadLocal.withInitial( () -> Boolean.FALSE );
+
+	final long[] dims;
+
+	final double[] calibration;
+
+	final int nFrames;
+
+	final double radius;
+
+	final int nLevels;
+
+	private final long latency;
+
+	private final double noise;
+
+	/** Blob &rarr; frame &rarr; position, in global coordinates. */
+	final double[][][] trajectories;
+
+	final AtomicLong detectionLoadTime = new AtomicLong();
+
+	final AtomicLong otherLoadTime = new AtomicLong();
+
+	final AtomicLong nCellsLoaded = new AtomicLong();
+
+	private final Map< Integer, RandomAccessibleInterval< UnsignedShortType > > images = new ConcurrentHashMap<>();
+
+	private SyntheticBlobData( final String[] parts )
+	{
+		this.dims = new long[] { ( long ) get( parts, "x", 256 ), ( long ) get( parts, "y", 256 ), ( long ) get( parts, "z", 64 ) };
+		this.calibration = new double[] { get( parts, "sx", 1 ), get( parts, "sy", 1 ), get( parts, "sz", 1 ) };
+		this.nFrames = ( int ) get( parts, "t", 20 );
+		this.radius = get( parts, "r", 4 );
+		this.nLevels = ( int ) get( parts, "levels", 1 );
+		this.latency = ( long ) get( parts, "latency", 0 );
+		this.noise = get( parts, "noise", 20 );
+		final int nBlobs = ( int ) get( parts, "n", 10 );
+		final double velocity = get( parts, "v", 2 );
+		final Random ran = new Random( ( long ) get( parts, "seed", 1 ) );
+
+		/*
+		 * Trajectories: constant speed, random direction, bouncing off the
+		 * image borders.
+		 */
+
+		final double margin = 3 * radius;
+		trajectories = new double[ nBlobs ][ nFrames ][ 3 ];
+		for ( int b = 0; b < nBlobs; b++ )
+		{
+			final double[] pos = new double[ 3 ];
+			final double[] v = new double[ 3 ];
+			double norm = 0;
+			for ( int d = 0; d < 3; d++ )
+			{
+				final double size = dims[ d ] * calibration[ d ];
+				pos[ d ] = margin + ran.nextDouble() * ( size - 2 * margin );
+				v[ d ] = ran.nextGaussian();
+				norm += v[ d ] * v[ d ];
+			}
+			for ( int d = 0; d < 3; d++ )
+				v[ d ] *= velocity / Math.sqrt( norm );
+
+			for ( int t = 0; t < nFrames; t++ )
+			{
+				for ( int d = 0; d < 3; d++ )
+				{
+					final double size = dims[ d ] * calibration[ d ];
+					if ( pos[ d ] + v[ d ] < margin || pos[ d ] + v[ d ] > size - margin )
+						v[ d ] = -v[ d ];
+					trajectories[ b ][ t ][ d ] = pos[ d ];
+					pos[ d ] += v[ d ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates synthetic data from the specified description.
+	 *
+	 * @return the data, or <code>null</code> if the description does not
+	 *         match the pattern.
+	 */
+	public static SyntheticBlobData tryCreate( final String description )
+	{
+		if ( !description.endsWith( BLOBS ) )
+			return null;
+
+		try
+		{
+			final String[] parts = description.substring( 0, description.length() - BLOBS.length() ).split( "\\s+" );
+			return new SyntheticBlobData( parts );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return null;
+		}
+	}
+
+	public SourceAndConverter< UnsignedShortType > getSource()
+	{
+		return new SourceAndConverter<>( new BlobSource(), new RealARGBConverter<>( 0, BACKGROUND + AMPLITUDE ) );
+	}
+
+	private static double get( final String[] parts, final String key, final double defaultValue )
+	{
+		final String prefix = key + "=";
+		for ( final String part : parts )
+			if ( part.startsWith( prefix ) )
+				return Double.parseDouble( part.substring( prefix.length() ) );
+		return defaultValue;
+	}
+
+	private void getSourceTransform( final int level, final AffineTransform3D transform )
+	{
+		transform.identity();
+		final double scale = 1 << level;
+		for ( int d = 0; d < 3; d++ )
+			transform.set( calibration[ d ] * scale, d, d );
+	}
+
+	private RandomAccessibleInterval< UnsignedShortType > getImage( final int t, final int level )
+	{
+		return images.computeIfAbsent( t * nLevels + level, k -> {
+			final long[] levelDims = new long[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				levelDims[ d ] = Math.max( 1, dims[ d ] >> level );
+			final ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory(
+					ReadOnlyCachedCellImgOptions.options().cellDimensions( CELL_SIZE ) );
+			return factory.create( levelDims, new UnsignedShortType(), new BlobLoader( t, level ) );
+		} );
+	}
+
+	/**
+	 * Renders the blobs of one frame in the cells of one level.
+	 */
+	private final class BlobLoader implements CellLoader< UnsignedShortType >
+	{
+
+		private final int t;
+
+		private final AffineTransform3D transform = new AffineTransform3D();
+
+		private BlobLoader( final int t, final int level )
+		{
+			this.t = t;
+			getSourceTransform( level, transform );
+		}
+
+		@Override
+		public void load( final SingleCellArrayImg< UnsignedShortType, ? > cell ) throws Exception
+		{
+			final long start = System.nanoTime();
+			if ( latency > 0 )
+				Thread.sleep( latency );
+
+			// Blob profile matched to the LoG detector.
+			final double sigma = radius / Math.sqrt( 3 );
+			final double[] pos = new double[ 3 ];
+			final Cursor< UnsignedShortType > cursor = cell.localizingCursor();
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				cursor.localize( pos );
+				transform.apply( pos, pos );
+				double val = BACKGROUND;
+				for ( final double[][] trajectory : trajectories )
+				{
+					final double[] c = trajectory[ t ];
+					final double dx = pos[ 0 ] - c[ 0 ];
+					final double dy = pos[ 1 ] - c[ 1 ];
+					final double dz = pos[ 2 ] - c[ 2 ];
+					final double d2 = dx * dx + dy * dy + dz * dz;
+					if ( d2 < 16 * sigma * sigma )
+						val += AMPLITUDE * Math.exp( -d2 / ( 2 * sigma * sigma ) );
+				}
+				// Deterministic noise, so that reloaded cells are identical.
+				final long h = ( ( cursor.getLongPosition( 0 ) * 73856093 ) ^ ( cursor.getLongPosition( 1 ) * 19349663 ) ^ ( cursor.getLongPosition( 2 ) * 83492791 ) ^ ( t * 2654435761l ) );
+				val += noise * ( ( ( h & 0xffff ) / 32768. ) - 1. );
+				cursor.get().setReal( Math.max( 0, val ) );
+			}
+
+			nCellsLoaded.incrementAndGet();
+			final long dt = System.nanoTime() - start;
+			if ( IN_DETECTION.get() )
+				detectionLoadTime.addAndGet( dt );
+			else
+				otherLoadTime.addAndGet( dt );
+		}
+	}
+
+	private final class BlobSource implements Source< UnsignedShortType >
+	{
+
+		private final VoxelDimensions voxelDimensions = new FinalVoxelDimensions( "um", calibration );
+
+		@Override
+		public boolean isPresent( final int t )
+		{
+			return t >= 0 && t < nFrames;
+		}
+
+		@Override
+		public RandomAccessibleInterval< UnsignedShortType > getSource( final int t, final int level )
+		{
+			return getImage( t, level );
+		}
+
+		@Override
+		public RealRandomAccessible< UnsignedShortType > getInterpolatedSource( final int t, final int level, final Interpolation method )
+		{
+			if ( method == Interpolation.NLINEAR )
+				return Views.interpolate( Views.extendZero( getSource( t, level ) ), new NLinearInterpolatorFactory<>() );
+			return Views.interpolate( Views.extendZero( getSource( t, level ) ), new NearestNeighborInterpolatorFactory<>() );
+		}
+
+		@Override
+		public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+		{
+			SyntheticBlobData.this.getSourceTransform( level, transform );
+		}
+
+		@Override
+		public UnsignedShortType getType()
+		{
+			return new UnsignedShortType();
+		}
+
+		@Override
+		public String getName()
+		{
+			return "blobs";
+		}
+
+		@Override
+		public VoxelDimensions getVoxelDimensions()
+		{
+			return voxelDimensions;
+		}
+
+		@Override
+		public int getNumMipmapLevels()
+		{
+			return nLevels;
+		}
+	}
+}
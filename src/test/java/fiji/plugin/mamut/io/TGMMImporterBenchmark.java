@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Times the phases of the TGMM import on synthetic TGMM data: parsing the XML
+ * files, linking spots to their parent, breaking divisions and creating the
+ * model.
+ */
+public class TGMMImporterBenchmark
+{
+
+	private static final int N_DETECTIONS = 10000;
+
+	private static final int N_FRAMES = 50;
+
+	private static final double DIVISION_RATE = 0.01;
+
+	private static final int N_RUNS = 5;
+
+	/**
+	 * Leave divisions intact. Breaking them compares all pairs of edges, which
+	 * does not finish on a model of this size.
+	 */
+	private static final int BREAK_DIVISIONS = 0;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final File folder = Files.createTempDirectory( "TGMM" ).toFile();
+		System.out.println( "Generating " + N_FRAMES + " frames of " + N_DETECTIONS + " detections in " + folder );
+		long start = System.currentTimeMillis();
+		final long nSpots = new TGMMSyntheticDataGenerator( N_DETECTIONS, DIVISION_RATE, 1l ).generate( folder, N_FRAMES );
+		long end = System.currentTimeMillis();
+		System.out.println( "Generated " + nSpots + " detections in " + ( end - start ) / 1000 + " s." );
+
+		final List< AffineTransform3D > transforms = new ArrayList<>( N_FRAMES );
+		final List< TimePoint > timepoints = new ArrayList<>( N_FRAMES );
+		for ( int t = 0; t < N_FRAMES; t++ )
+		{
+			transforms.add( new AffineTransform3D() );
+			timepoints.add( new TimePoint( t ) );
+		}
+
+		System.out.println( "Run\tParsing (ms)\tLinking (ms)\tDivisions (ms)\tModel (ms)\tTotal (ms)\tSpots/s" );
+		for ( int run = 0; run < N_RUNS; run++ )
+		{
+			final TGMMImporter2 importer = new TGMMImporter2( folder, transforms, timepoints, TGMMImporter2.DEFAULT_PATTERN, Logger.VOID_LOGGER, null, 0, N_FRAMES - 1, BREAK_DIVISIONS );
+			if ( !importer.checkInput() || !importer.process() )
+			{
+				System.err.println( importer.getErrorMessage() );
+				return;
+			}
+			final Model model = importer.getResult();
+			final long total = importer.getProcessingTime();
+			System.out.println( String.format( "%d\t%d\t%d\t%d\t%d\t%d\t%.0f",
+					run,
+					importer.getParsingTime(),
+					importer.getLinkingTime(),
+					importer.getDivisionBreakingTime(),
+					importer.getModelCreationTime(),
+					total,
+					1000. * model.getSpots().getNSpots( false ) / total ) );
+		}
+
+		for ( final File file : folder.listFiles() )
+			file.delete();
+		folder.delete();
+	}
+}
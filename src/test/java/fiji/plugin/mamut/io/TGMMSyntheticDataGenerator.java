@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * Fiji plugin for the annotation of massive, multi-view data.
+ * %%
+ * Copyright (C) 2012 - 2023 MaMuT development team.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.mamut.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes a synthetic TGMM output folder, with one XML file per frame named
+ * like the files written by TGMM, so that the TGMM importer can be tested and
+ * benchmarked without real data.
+ * <p>
+ * Cells move randomly and divide with a fixed probability per frame. To keep
+ * the number of detections per frame constant, a random cell is lost for each
+ * division, which also creates track ends.
+ */
+public class TGMMSyntheticDataGenerator
+{
+
+	public static final String FILE_NAME_FORMAT = "GMEMfinalResult_frame%04d.xml";
+
+	/** Gaussian shape of all detections, in pixels. */
+	private static final double SIGMA = 3.;
+
+	private static final double NU = 10.;
+
+	private static final double STEP = 2.;
+
+	private final int nDetections;
+
+	private final double divisionRate;
+
+	private final double size;
+
+	private final Random ran;
+
+	/**
+	 * Creates a new generator.
+	 *
+	 * @param nDetections
+	 *            the number of detections per frame.
+	 * @param divisionRate
+	 *            the probability that a cell divides at each frame.
+	 * @param seed
+	 *            the random seed.
+	 */
+	public TGMMSyntheticDataGenerator( final int nDetections, final double divisionRate, final long seed )
+	{
+		this.nDetections = nDetections;
+		this.divisionRate = divisionRate;
+		// Volume growing with the number of cells, at constant density.
+		this.size = 20. * Math.cbrt( nDetections );
+		this.ran = new Random( seed );
+	}
+
+	/**
+	 * Writes the frames 0 to <code>nFrames - 1</code> to the specified folder,
+	 * which is created if needed.
+	 *
+	 * @return the total number of detections written.
+	 */
+	public long generate( final File folder, final int nFrames ) throws IOException
+	{
+		if ( !folder.exists() && !folder.mkdirs() )
+			throw new IOException( "Could not create folder " + folder );
+
+		List< Cell > cells = new ArrayList<>( nDetections );
+		for ( int i = 0; i < nDetections; i++ )
+			cells.add( new Cell( i, i, -1, ran.nextDouble() * size, ran.nextDouble() * size, ran.nextDouble() * size ) );
+
+		long nTotal = 0;
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			write( new File( folder, String.format( FILE_NAME_FORMAT, frame ) ), cells );
+			nTotal += cells.size();
+			cells = nextFrame( cells );
+		}
+		return nTotal;
+	}
+
+	private List< Cell > nextFrame( final List< Cell > cells )
+	{
+		final List< Cell > next = new ArrayList<>( nDetections );
+		int id = 0;
+		int nDivisions = 0;
+		for ( final Cell cell : cells )
+		{
+			if ( ran.nextDouble() < divisionRate )
+			{
+				next.add( cell.child( id++, ran ) );
+				next.add( cell.child( id++, ran ) );
+				nDivisions++;
+			}
+			else
+			{
+				next.add( cell.child( id++, ran ) );
+			}
+		}
+
+		// Lose as many cells as there were divisions.
+		for ( int i = 0; i < nDivisions && next.size() > 1; i++ )
+			next.remove( ran.nextInt( next.size() ) );
+
+		// Renumber, TGMM ids are the index of the detection in the frame.
+		final List< Cell > renumbered = new ArrayList<>( next.size() );
+		for ( int i = 0; i < next.size(); i++ )
+		{
+			final Cell c = next.get( i );
+			renumbered.add( new Cell( i, c.lineage, c.parent, c.x, c.y, c.z ) );
+		}
+		return renumbered;
+	}
+
+	private void write( final File file, final List< Cell > cells ) throws IOException
+	{
+		final double w = 1. / ( SIGMA * SIGMA * NU );
+		final String W = String.format( Locale.US, "%g 0 0 0 %g 0 0 0 %g", w, w, w );
+		try (final Writer writer = new BufferedWriter( new FileWriter( file ), 1 << 16 ))
+		{
+			writer.write( "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" );
+			writer.write( "<document>\n" );
+			for ( final Cell cell : cells )
+			{
+				writer.write( String.format( Locale.US,
+						"<GaussianMixtureModel id=\"%d\" lineage=\"%d\" parent=\"%d\" splitScore=\"%d\" scale=\"1 1 1\" nu=\"%g\" beta=\"%g\" alpha=\"%g\" m=\"%.4f %.4f %.4f\" W=\"%s\" />\n",
+						cell.id, cell.lineage, cell.parent, 3, NU, NU, NU, cell.x, cell.y, cell.z, W ) );
+			}
+			writer.write( "</document>\n" );
+		}
+	}
+
+	private static final class Cell
+	{
+		private final int id;
+
+		private final int lineage;
+
+		private final int parent;
+
+		private final double x;
+
+		private final double y;
+
+		private final double z;
+
+		public Cell( final int id, final int lineage, final int parent, final double x, final double y, final double z )
+		{
+			this.id = id;
+			this.lineage = lineage;
+			this.parent = parent;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		public Cell child( final int childID, final Random ran )
+		{
+			return new Cell( childID, lineage, id,
+					x + STEP * ran.nextGaussian(),
+					y + STEP * ran.nextGaussian(),
+					z + STEP * ran.nextGaussian() );
+		}
+	}
+}